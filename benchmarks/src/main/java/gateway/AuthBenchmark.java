@@ -0,0 +1,110 @@
+package gateway;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Registration, password login and session lookup as the registered user population grows.
+ *
+ * Forks run with one PBKDF2 iteration so populating a million users stays quick and the results show the gateway's
+ * own lookup and locking cost; verifyProductionHash measures the hash at the default work factor on its own.
+ * Ten million users with a session each need about 5 GiB of heap, so that size is left to an explicit run:
+ * -p users=10000000 -jvmArgsAppend "-Xmx8g -Dgateway.passwordIterations=1" (the option replaces the arguments
+ * given here rather than adding to them).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Dgateway.passwordIterations=1" })
+public class AuthBenchmark {
+    private static final int PROBES = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({ "1000", "100000", "1000000" })
+        int users;
+
+        PaymentGateway gateway;
+        SessionCache sessions;
+        String[] names = new String[PROBES];
+        String[] passwords = new String[PROBES];
+        String[] tokens = new String[PROBES];
+        String[] unknownTokens = new String[PROBES];
+        int registered;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            gateway = new PaymentGateway();
+            sessions = new SessionCache(3600, Integer.MAX_VALUE);
+            String[] allTokens = new String[users];
+            for (; registered < users; registered++) {
+                allTokens[registered] = sessions.issue(gateway.registerUser("user" + registered, "pw" + registered));
+            }
+            Random random = new Random(users);
+            for (int i = 0; i < PROBES; i++) {
+                int id = random.nextInt(users);
+                names[i] = "user" + id;
+                passwords[i] = "pw" + id;
+                tokens[i] = allTokens[id];
+                unknownTokens[i] = tokens[i].substring(1) + "x";
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next() {
+            return next++ & (PROBES - 1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ProductionHash {
+        String hash;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = PasswordHasher.hash("probe", 120_000);
+        }
+    }
+
+    @Benchmark
+    public Object loginUser(Population population, Cursor cursor) {
+        int i = cursor.next();
+        return population.gateway.loginUser(population.names[i], population.passwords[i]);
+    }
+
+    @Benchmark
+    public Object loginWrongPassword(Population population, Cursor cursor) {
+        return population.gateway.loginUser(population.names[cursor.next()], "wrong");
+    }
+
+    @Benchmark
+    public Object resolveSession(Population population, Cursor cursor) {
+        return population.sessions.resolve(population.tokens[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object resolveUnknownSession(Population population, Cursor cursor) {
+        return population.sessions.resolve(population.unknownTokens[cursor.next()]);
+    }
+
+    // Every call adds a user, so the population ends a few million above the parameter
+    @Benchmark
+    public Object registerUser(Population population) {
+        return population.gateway.registerUser("new" + population.registered++, "pw");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 2)
+    @Measurement(iterations = 3, time = 2)
+    public boolean verifyProductionHash(ProductionHash production) {
+        return PasswordHasher.verify("probe", production.hash);
+    }
+}
@@ -0,0 +1,21 @@
+package gateway;
+
+import java.util.*;
+
+/**
+ * Entry point of the benchmarks jar. Runs JMH with its gc profiler on, so every result comes with the allocation
+ * rate per operation next to the time; pass any -prof option to choose profilers yourself.
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-l") && !options.contains("-h")) {
+            options.add("-prof");
+            options.add("gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,91 @@
+package gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Requests per second through the real handlers, against an HttpServer started in the benchmark's JVM on a free
+ * loopback port and driven over keep-alive connections. The journal and the per-user payment limit are off and the
+ * simulated processor answers at once, so this is HTTP, parsing, handler, velocity rule, pipeline and rendering cost
+ * for one busy user. The velocity rules still run on every payment, with limits raised past what one user paying
+ * flat out reaches, so they count without declining. indexPage fetches the web UI's index.html, gzipped from
+ * memory, when run from the repository root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dgateway.passwordIterations=1",
+        "-Dgateway.rateLimit.payment.perUser=off", "-Dgateway.processor.latencyMedianMs=0",
+        "-Dgateway.processor.declineRate=0", "-Dgateway.processor.errorRate=0",
+        "-Dgateway.velocity.instrumentAttemptsPerMinute=1000000000",
+        "-Dgateway.velocity.userAmountPerHour=1000000000000" })
+public class HandlerThroughputBenchmark {
+    HttpServer server;
+    HttpClient client;
+    HttpRequest payment;
+    HttpRequest products;
+    HttpRequest indexPage;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = Main.startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        PaymentGateway gateway = Main.gateway();
+        User user = gateway.registerUser("bench", "pw");
+        gateway.updatePaymentMethod(user, "UPI", Map.of("upiId", "bench@okbank"));
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String login = send(HttpRequest.newBuilder(URI.create(base + "/api/login"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"bench\",\"password\":\"pw\"}")).build());
+        int start = login.indexOf("\"token\":\"") + 9;
+        String token = login.substring(start, login.indexOf('"', start));
+
+        payment = HttpRequest.newBuilder(URI.create(base + "/api/payment"))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + token)
+                .POST(HttpRequest.BodyPublishers.ofString("{\"productId\":1}"))
+                .build();
+        products = HttpRequest.newBuilder(URI.create(base + "/api/products")).GET().build();
+        indexPage = HttpRequest.newBuilder(URI.create(base + "/")).header("Accept-Encoding", "gzip").GET().build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public String payment() throws Exception {
+        return send(payment);
+    }
+
+    @Benchmark
+    public String products() throws Exception {
+        return send(products);
+    }
+
+    @Benchmark
+    public String indexPage() throws Exception {
+        return send(indexPage);
+    }
+
+    private String send(HttpRequest request) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() / 100 != 2) {
+            throw new IllegalStateException(request.uri() + " answered " + response.statusCode());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,396 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Load generator for the gateway's HTTP API. Every simulated user registers, logs in and sets a payment method
+ * (cycling through the four built-in methods), then payments are sent for those users for a fixed time in one of
+ * two modes:
+ *
+ * - open: payments are scheduled at load.rate per second whatever the server does, as independent clients would
+ *   send them. Latency runs from each payment's scheduled time, so time spent waiting behind a slow server counts.
+ * - closed: load.concurrency workers each send a payment, wait for the answer and think for load.thinkMs. Latency
+ *   is also recorded with HdrHistogram's expected-interval correction, taking the mean warm-up latency as the
+ *   interval, to account for the payments a stalled worker would have sent.
+ *
+ * Both report the corrected and the plain per-request latency, so the gap between them shows coordinated omission.
+ * A payment counts as answered when the gateway accepts it; authorization by the processor happens afterwards and
+ * is not timed here, but a full pipeline shows up as 503 errors.
+ * Without load.target the gateway's handlers are started in this JVM on a free loopback port, with no journal.
+ *
+ * Run after mvn package:
+ *   java -Dload.mode=open -Dload.rate=2000 -cp benchmarks/target/benchmarks.jar gateway.LoadGenerator
+ */
+public final class LoadGenerator {
+    private static final String[] METHODS = { "Credit Card", "Bank Account", "UPI", "PayPal" };
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final Pattern TOKEN = Pattern.compile("\"token\":\"([^\"]+)\"");
+    private static final Pattern PRODUCT_ID = Pattern.compile("\"id\":(\\d+)");
+
+    private final String mode = System.getProperty("load.mode", "open");
+    private final int users = Integer.getInteger("load.users", 100);
+    private final int rate = Integer.getInteger("load.rate", 1000);
+    private final int concurrency = Integer.getInteger("load.concurrency", 16);
+    private final long thinkMillis = Long.getLong("load.thinkMs", 0);
+    private final int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+    private final int durationSeconds = Integer.getInteger("load.durationSeconds", 30);
+    private final int maxOutstanding = Integer.getInteger("load.maxOutstanding", 1024);
+    private final Duration timeout = Duration.ofSeconds(Long.getLong("load.timeoutSeconds", 10));
+    private final String histogramFile = System.getProperty("load.histogramFile");
+
+    private final URI base;
+    private final HttpClient client;
+    private String[] tokens;
+    private int[] productIds;
+
+    /** Latencies, in microseconds, and outcomes of one kind of request. */
+    static final class Operation {
+        final String name;
+        final Histogram corrected = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+        final Histogram uncorrected = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+        final LongAdder requests = new LongAdder();
+        final Map<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void record(long correctedNanos, long uncorrectedNanos, String error) {
+            corrected.recordValue(micros(correctedNanos));
+            uncorrected.recordValue(micros(uncorrectedNanos));
+            count(error);
+        }
+
+        void recordWithExpectedInterval(long nanos, long expectedIntervalNanos, String error) {
+            corrected.recordValueWithExpectedInterval(micros(nanos), micros(expectedIntervalNanos));
+            uncorrected.recordValue(micros(nanos));
+            count(error);
+        }
+
+        long errorCount() {
+            return errors.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        private void count(String error) {
+            requests.increment();
+            if (error != null) {
+                errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+            }
+        }
+
+        private static long micros(long nanos) {
+            return Math.min(Math.max(nanos / 1000, 0), HIGHEST_MICROS);
+        }
+    }
+
+    LoadGenerator(URI base) {
+        this.base = base;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = System.getProperty("load.target");
+        HttpServer server = null;
+        if (target == null) {
+            // Every simulated user connects from this host; per-IP limits would throttle them all as one client,
+            for (String context : new String[] { "register", "login" }) {
+                if (System.getProperty("gateway.rateLimit." + context + ".perIp") == null) {
+                    System.setProperty("gateway.rateLimit." + context + ".perIp", "off");
+                }
+            }
+            // and the simulated users share card numbers and pay far faster than a person would, so the velocity
+            // limits are raised past what they reach; the rules still run and count every payment
+            for (String rule : new String[] { "instrumentAttemptsPerMinute", "userAmountPerHour",
+                    "failedVerificationsPer10Minutes" }) {
+                if (System.getProperty("gateway.velocity." + rule) == null) {
+                    System.setProperty("gateway.velocity." + rule, "1000000000000");
+                }
+            }
+            server = Main.startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            target = "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+        try {
+            new LoadGenerator(URI.create(target)).run();
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+    }
+
+    void run() throws Exception {
+        if (!mode.equals("open") && !mode.equals("closed")) {
+            throw new IllegalArgumentException("load.mode must be open or closed");
+        }
+        System.out.printf("Target %s, %d users, %s loop (%s), %d s warm-up, %d s measured%n", base, users, mode,
+                mode.equals("open") ? rate + " payments/s" : concurrency + " workers, " + thinkMillis + " ms think",
+                warmupSeconds, durationSeconds);
+
+        productIds = fetchProductIds();
+        Operation register = new Operation("register");
+        Operation login = new Operation("login");
+        Operation paymentMethod = new Operation("payment-method");
+        long start = System.nanoTime();
+        setUpUsers(register, login, paymentMethod);
+        double setupSeconds = (System.nanoTime() - start) / 1e9;
+        if (tokens.length == 0) {
+            throw new IllegalStateException("No user could be set up");
+        }
+        System.out.printf("Set up %d of %d users in %.1f s%n%n", tokens.length, users, setupSeconds);
+
+        Operation payment = new Operation("payment");
+        double seconds;
+        if (mode.equals("open")) {
+            openLoop(new Operation("warm-up"), warmupSeconds);
+            seconds = openLoop(payment, durationSeconds);
+        } else {
+            Operation warmup = new Operation("warm-up");
+            closedLoop(warmup, warmupSeconds, 0);
+            long expectedInterval = Math.max((long) (warmup.uncorrected.getMean() * 1000), 1000)
+                    + thinkMillis * 1_000_000;
+            seconds = closedLoop(payment, durationSeconds, expectedInterval);
+        }
+
+        printHeader();
+        print(register.name, register, register.corrected, setupSeconds);
+        print(login.name, login, login.corrected, setupSeconds);
+        print(paymentMethod.name, paymentMethod, paymentMethod.corrected, setupSeconds);
+        print("payment", payment, payment.corrected, seconds);
+        print("  uncorrected", payment, payment.uncorrected, seconds);
+        for (Operation operation : List.of(register, login, paymentMethod, payment)) {
+            if (!operation.errors.isEmpty()) {
+                StringJoiner errors = new StringJoiner(", ");
+                operation.errors.forEach((error, count) -> errors.add(error + " x" + count.sum()));
+                System.out.printf("%s errors: %s%n", operation.name, errors);
+            }
+        }
+        if (mode.equals("open") && payment.requests.sum() / seconds < rate * 0.95) {
+            System.out.printf("Server fell behind: %.0f payments/s completed against %d/s scheduled%n",
+                    payment.requests.sum() / seconds, rate);
+        }
+        if (histogramFile != null) {
+            try (PrintStream out = new PrintStream(histogramFile)) {
+                payment.corrected.outputPercentileDistribution(out, 1000.0);
+            }
+            System.out.println("Corrected payment latency distribution (ms) written to " + histogramFile);
+        }
+    }
+
+    private int[] fetchProductIds() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve("/api/products")).timeout(timeout).GET().build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        Matcher ids = PRODUCT_ID.matcher(response.body());
+        List<Integer> found = new ArrayList<>();
+        while (ids.find()) {
+            found.add(Integer.parseInt(ids.group(1)));
+        }
+        if (response.statusCode() != 200 || found.isEmpty()) {
+            throw new IllegalStateException("No products listed by " + request.uri());
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Runs each user's register, login, payment method flow on load.concurrency threads
+    private void setUpUsers(Operation register, Operation login, Operation paymentMethod)
+            throws InterruptedException {
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        String[] issued = new String[users];
+        ExecutorService setup = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            setup.execute(() -> {
+                String credentials = "{\"username\":\"load-" + run + "-" + user + "\",\"password\":\"pw" + user + "\"}";
+                if (send(register, post("/api/register", null, credentials)) == null) {
+                    return;
+                }
+                String body = send(login, post("/api/login", null, credentials));
+                Matcher token = body == null ? null : TOKEN.matcher(body);
+                if (token == null || !token.find()) {
+                    return;
+                }
+                if (send(paymentMethod, post("/api/payment-method", token.group(1), paymentMethod(user))) != null) {
+                    issued[user] = token.group(1);
+                }
+            });
+        }
+        setup.shutdown();
+        setup.awaitTermination(1, TimeUnit.HOURS);
+        tokens = Arrays.stream(issued).filter(Objects::nonNull).toArray(String[]::new);
+    }
+
+    // Schedules payments at the configured rate and returns the seconds until the last one completed
+    private double openLoop(Operation payments, int seconds) throws InterruptedException {
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (long i = 0;; i++) {
+            long scheduled = start + (long) (i * 1e9 / rate);
+            if (scheduled >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // Once maxOutstanding payments are in flight the next ones queue here, still timed from their schedule
+            outstanding.acquire();
+            long sent = System.nanoTime();
+            client.sendAsync(payment(i), HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+                long now = System.nanoTime();
+                payments.record(now - scheduled, now - sent, outcome(response, failure));
+                outstanding.release();
+            });
+        }
+        outstanding.acquire(maxOutstanding);
+        outstanding.release(maxOutstanding);
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // Runs load.concurrency send-wait-think workers and returns the seconds they ran for
+    private double closedLoop(Operation payments, int seconds, long expectedIntervalNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] workers = new Thread[concurrency];
+        for (int w = 0; w < concurrency; w++) {
+            int worker = w;
+            workers[w] = new Thread(() -> {
+                try {
+                    for (long i = worker; System.nanoTime() < end; i += concurrency) {
+                        long sent = System.nanoTime();
+                        String error;
+                        try {
+                            error = outcome(client.send(payment(i), HttpResponse.BodyHandlers.discarding()), null);
+                        } catch (IOException e) {
+                            error = e.getClass().getSimpleName();
+                        }
+                        long latency = System.nanoTime() - sent;
+                        if (expectedIntervalNanos > 0) {
+                            payments.recordWithExpectedInterval(latency, expectedIntervalNanos, error);
+                        } else {
+                            payments.record(latency, latency, error);
+                        }
+                        if (thinkMillis > 0) {
+                            Thread.sleep(thinkMillis);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-worker-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    // Sends a setup request and returns its body, or null when it failed. A 429 is counted, then retried after the
+    // Retry-After the server asked for, as a well-behaved client would
+    private String send(Operation operation, HttpRequest request) {
+        for (int attempt = 0;; attempt++) {
+            long sent = System.nanoTime();
+            String error;
+            HttpResponse<String> response = null;
+            try {
+                response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                error = outcome(response, null);
+            } catch (IOException e) {
+                error = e.getClass().getSimpleName();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "interrupted";
+            }
+            long latency = System.nanoTime() - sent;
+            operation.record(latency, latency, error);
+            if (error == null) {
+                return response.body();
+            }
+            if (response == null || response.statusCode() != 429 || attempt == 10) {
+                return null;
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(
+                        Long.parseLong(response.headers().firstValue("Retry-After").orElse("1"))));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private HttpRequest payment(long i) {
+        return post("/api/payment", tokens[(int) (i % tokens.length)],
+                "{\"productId\":" + productIds[(int) (i % productIds.length)] + "}");
+    }
+
+    private HttpRequest post(String path, String token, String body) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(base.resolve(path))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return request.build();
+    }
+
+    private static String paymentMethod(int user) {
+        switch (METHODS[user % METHODS.length]) {
+            case "Credit Card":
+                return "{\"paymentMethod\":\"Credit Card\",\"cardNumber\":\"4111 1111 1111 1111\","
+                        + "\"cardExpiry\":\"12/39\",\"cardCVV\":\"123\"}";
+            case "Bank Account":
+                return "{\"paymentMethod\":\"Bank Account\",\"bankAccount\":\"1234 5678 9012\"}";
+            case "UPI":
+                return "{\"paymentMethod\":\"UPI\",\"upiId\":\"load" + user + "@okbank\"}";
+            default:
+                return "{\"paymentMethod\":\"PayPal\"}";
+        }
+    }
+
+    // Null for a 2xx answer, otherwise what went wrong
+    private static String outcome(HttpResponse<?> response, Throwable failure) {
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause()
+                    : failure;
+            return cause.getClass().getSimpleName();
+        }
+        return response.statusCode() / 100 == 2 ? null : "HTTP " + response.statusCode();
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-16s %9s %7s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "requests", "errors", "req/s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms");
+    }
+
+    private static void print(String label, Operation operation, Histogram latency, double seconds) {
+        long requests = operation.requests.sum();
+        System.out.printf("%-16s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", label, requests,
+                operation.errorCount(), requests / seconds, latency.getValueAtPercentile(50) / 1000.0,
+                latency.getValueAtPercentile(90) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0, latency.getValueAtPercentile(99.99) / 1000.0,
+                latency.getMaxValue() / 1000.0);
+    }
+}
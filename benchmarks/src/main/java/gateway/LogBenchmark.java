@@ -0,0 +1,46 @@
+package gateway;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost to a request thread of logging a payment method update: GatewayLog, which masks and queues the event for its
+ * writer thread, against the synchronized println it replaced. Both write to /dev/null, so each println
+ * pays a write system call as it would on stdout, without a terminal's cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LogBenchmark {
+    GatewayLog log;
+    PrintStream stdout;
+
+    @Setup
+    public void setUp() throws IOException {
+        log = new GatewayLog(GatewayLog.Level.INFO, 8192, false, 10, new FileOutputStream("/dev/null"));
+        stdout = new PrintStream(new FileOutputStream("/dev/null"), true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.close();
+    }
+
+    @Benchmark
+    public boolean gatewayLog() {
+        return log.log(GatewayLog.Level.INFO, "payment-method.update", null, "user", "alice", "method",
+                "Credit Card", "cardNumber", "4111 1111 1111 1111", "bankAccount", null);
+    }
+
+    @Benchmark
+    public void println() {
+        stdout.println("Payment Method Update Request: user=" + "alice" + ", method=" + "Credit Card");
+    }
+}
@@ -0,0 +1,43 @@
+package gateway;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What GatewayMetrics adds to every request and payment, with one thread and with every thread recording into the
+ * same endpoint, the worst case for the shared histogram buckets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    GatewayMetrics.Endpoint endpoint;
+    GatewayMetrics metrics;
+    Transaction transaction;
+
+    @Setup
+    public void setUp() {
+        endpoint = new GatewayMetrics.Endpoint("/api/payment");
+        metrics = new GatewayMetrics();
+        transaction = new Transaction(0, 0, new Product("Laptop", 1000.0), 100_000, true, 0);
+    }
+
+    @Benchmark
+    public void recordRequest() {
+        endpoint.record(200, System.nanoTime() & 0xFFFFF, 16, 220);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordRequestContended() {
+        endpoint.record(200, System.nanoTime() & 0xFFFFF, 16, 220);
+    }
+
+    @Benchmark
+    public void recordPayment() {
+        metrics.recordPayment("UPI", transaction);
+    }
+}
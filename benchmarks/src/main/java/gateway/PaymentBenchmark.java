@@ -0,0 +1,81 @@
+package gateway;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The gateway's side of a payment for each built-in payment method, without a journal: the payment method check
+ * made when a payment is accepted plus recording the processor's decision, which cover validation, the transaction
+ * store append and locking. The gateway is rebuilt every iteration to keep the store from growing across the whole
+ * run.
+ *
+ * pipelineRoundTrip also takes each payment through the PaymentPipeline against a processor that approves at once,
+ * from accept() until the outcome is recorded on a completion thread, so it adds the pipeline's bookkeeping and
+ * two thread handoffs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Dgateway.passwordIterations=1" })
+public class PaymentBenchmark {
+    @Param({ "Credit Card", "Bank Account", "UPI", "PayPal" })
+    String method;
+
+    PaymentGateway gateway;
+    User user;
+    Product product;
+    PaymentPipeline pipeline;
+    User pipelineUser;
+    Product pipelineProduct;
+    Semaphore completed = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUpPipeline() {
+        PaymentGateway pipelineGateway = new PaymentGateway();
+        pipeline = new PaymentPipeline(pipelineGateway, payment -> CompletableFuture.completedFuture(
+                Authorization.APPROVED), new CircuitBreaker(20, TimeUnit.SECONDS.toNanos(10)), 1, 3000, 3, 100,
+                20_000, 1000, 3600);
+        pipeline.onComplete(payment -> completed.release());
+        pipelineUser = payer(pipelineGateway);
+        pipelineProduct = pipelineGateway.findProduct(0);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        gateway = new PaymentGateway();
+        user = payer(gateway);
+        product = gateway.findProduct(0);
+        if (!gateway.canCharge(user)) {
+            throw new IllegalStateException(method + " details were rejected");
+        }
+    }
+
+    private User payer(PaymentGateway gateway) {
+        User payer = gateway.registerUser("payer", "pw");
+        Map<String, String> details = new HashMap<>();
+        details.put("cardNumber", "4111 1111 1111 1111");
+        details.put("cardExpiry", "12/39");
+        details.put("cardCVV", "123");
+        details.put("bankAccount", "1234 5678 9012");
+        details.put("upiId", "payer@okbank");
+        gateway.updatePaymentMethod(payer, method, details);
+        return payer;
+    }
+
+    @Benchmark
+    public Object recordPayment() {
+        return gateway.canCharge(user) ? gateway.recordPayment(user, product, user.paymentMethod, true) : null;
+    }
+
+    @Benchmark
+    public Object pipelineRoundTrip() throws Exception {
+        Payment payment = pipeline.accept(pipelineUser, pipelineProduct, method);
+        completed.acquire();
+        return payment.status();
+    }
+}
@@ -0,0 +1,71 @@
+package gateway;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The single-pass PaymentDetailValidator checks against the regex validation they replaced. Each check cycles
+ * through valid and invalid inputs so neither path is predicted perfectly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaymentValidationBenchmark {
+    private static final String[] CARDS = { "4111 1111 1111 1111", "5500005555555559", "4012888888881881",
+            "1234567812345678" };
+    private static final String[] ACCOUNTS = { "12345678", "1234 5678 9012", "12345", "98765432101" };
+    private static final String[] UPI_IDS = { "someone@okbank", "first.last@upi", "bad id@x", "a@b" };
+
+    int next;
+
+    @Benchmark
+    public boolean regexCard() {
+        return regexCard(CARDS[next++ & 3], "12/30", "123");
+    }
+
+    @Benchmark
+    public boolean scanCard() {
+        return PaymentDetailValidator.isValidCard(CARDS[next++ & 3], "12/30", "123");
+    }
+
+    @Benchmark
+    public boolean regexBankAccount() {
+        return regexBankAccount(ACCOUNTS[next++ & 3]);
+    }
+
+    @Benchmark
+    public boolean scanBankAccount() {
+        return PaymentDetailValidator.isValidBankAccount(ACCOUNTS[next++ & 3]);
+    }
+
+    @Benchmark
+    public boolean regexUpi() {
+        return regexUpi(UPI_IDS[next++ & 3]);
+    }
+
+    @Benchmark
+    public boolean scanUpi() {
+        return PaymentDetailValidator.isValidUpiId(UPI_IDS[next++ & 3]);
+    }
+
+    // The validation PaymentGateway used before PaymentDetailValidator
+
+    private static boolean regexCard(String cardNumber, String expiry, String cvv) {
+        if (cardNumber == null || expiry == null || cvv == null) {
+            return false;
+        }
+        return cardNumber.replaceAll("\\s", "").matches("\\d{16}") && expiry.matches("\\d{2}/\\d{2}")
+                && cvv.matches("\\d{3}");
+    }
+
+    private static boolean regexBankAccount(String accountNumber) {
+        return accountNumber != null && accountNumber.replaceAll("\\s", "").matches("\\d{8,12}");
+    }
+
+    private static boolean regexUpi(String upiId) {
+        return upiId != null && upiId.matches("[a-zA-Z0-9.]+@[a-zA-Z0-9]+");
+    }
+}
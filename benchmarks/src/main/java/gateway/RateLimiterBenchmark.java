@@ -0,0 +1,45 @@
+package gateway;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of a rate limit check: a hit on one of many per-user buckets, and four threads contending on the single
+ * global bucket. Rates are set high enough that every request is admitted and each check completes its CAS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+    RateLimiter perUser;
+    RateLimiter global;
+    String[] users = new String[1024];
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        perUser = new RateLimiter(1e9, 1_000_000, 1_000_000);
+        global = new RateLimiter(1e9, 1_000_000, 1);
+        for (int i = 0; i < users.length; i++) {
+            users[i] = "user" + i;
+        }
+    }
+
+    @Benchmark
+    public long perUserBucket(Cursor cursor) {
+        return perUser.acquire(users[cursor.next++ & (users.length - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long globalBucketContended() {
+        return global.acquire("");
+    }
+}
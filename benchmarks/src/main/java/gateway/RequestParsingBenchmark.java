@@ -0,0 +1,68 @@
+package gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JsonRequestReader on the request bodies the handlers bind: a payment, a payment method update with fields the
+ * handler does not ask for, and a 1000-item batch read element by element.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final String[] PAYMENT_FIELDS = { "productId" };
+    private static final String[] PAYMENT_METHOD_FIELDS = { "paymentMethod", "cardNumber", "cardExpiry", "cardCVV",
+            "bankAccount", "upiId" };
+
+    byte[] payment;
+    byte[] paymentMethod;
+    byte[] batch;
+
+    @Setup
+    public void setUp() {
+        payment = "{\"productId\":2}".getBytes(StandardCharsets.UTF_8);
+        paymentMethod = ("{\"paymentMethod\":\"Credit Card\",\"cardNumber\":\"4111 1111 1111 1111\","
+                + "\"cardExpiry\":\"12/39\",\"cardCVV\":\"123\",\"nickname\":\"Caf\\u00e9 card\","
+                + "\"billing\":{\"city\":\"Pune\",\"lines\":[\"1\",\"2\"]}}").getBytes(StandardCharsets.UTF_8);
+        StringBuilder items = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            items.append(i == 0 ? "" : ",").append("{\"productId\":").append(i % 3).append('}');
+        }
+        batch = items.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object payment() throws IOException {
+        return reader(payment).readObject(PAYMENT_FIELDS);
+    }
+
+    @Benchmark
+    public Object paymentMethod() throws IOException {
+        return reader(paymentMethod).readObject(PAYMENT_METHOD_FIELDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int batchOf1000() throws IOException {
+        JsonRequestReader reader = reader(batch);
+        int items = 0;
+        reader.beginArray();
+        while (reader.nextElement()) {
+            if (reader.readObject(PAYMENT_FIELDS).get("productId") != null) {
+                items++;
+            }
+        }
+        return items;
+    }
+
+    private static JsonRequestReader reader(byte[] body) {
+        return new JsonRequestReader(new ByteArrayInputStream(body), body.length);
+    }
+}
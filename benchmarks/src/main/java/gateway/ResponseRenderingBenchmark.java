@@ -0,0 +1,70 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Rendering the payment response and a transaction history page for users with growing histories. Both should cost
+ * the same whatever the history length, since responses carry a summary and one page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dgateway.passwordIterations=1" })
+public class ResponseRenderingBenchmark {
+    @Param({ "0", "1000", "100000" })
+    int history;
+
+    PaymentGateway gateway;
+    User user;
+    Transaction latest;
+
+    @Setup
+    public void setUp() {
+        gateway = new PaymentGateway();
+        user = gateway.registerUser("payer", "pw");
+        gateway.updatePaymentMethod(user, "PayPal", java.util.Map.of());
+        for (int i = 0; i < history; i++) {
+            gateway.recordPayment(user, gateway.findProduct(i % 3), "PayPal", true);
+        }
+        latest = gateway.recordPayment(user, gateway.findProduct(0), "PayPal", true);
+    }
+
+    @Benchmark
+    public long paymentResponse() throws IOException {
+        JsonResponseWriter json = new JsonResponseWriter(OutputStream.nullOutputStream());
+        json.beginObject();
+        json.name("success").value(true);
+        json.name("message").value("Payment successful");
+        json.name("user");
+        Main.writeUser(json, user);
+        json.name("transaction");
+        Main.writeTransaction(json, latest);
+        json.endObject();
+        long size = json.size();
+        json.close();
+        return size;
+    }
+
+    @Benchmark
+    public long transactionPage() throws IOException {
+        List<Transaction> page = gateway.getTransactions(user, TransactionStore.NONE, 20);
+        JsonResponseWriter json = new JsonResponseWriter(OutputStream.nullOutputStream());
+        json.beginObject();
+        json.name("success").value(true);
+        json.name("transactions").beginArray();
+        for (Transaction transaction : page) {
+            Main.writeTransaction(json, transaction);
+        }
+        json.endArray();
+        json.endObject();
+        long size = json.size();
+        json.close();
+        return size;
+    }
+}
@@ -0,0 +1,74 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A settlement export of a whole day: payments spread over users, three payment methods and the catalog's
+ * products, declined one time in ten, written as CSV and as binary to a temporary directory on all processors.
+ * Each measurement is one export; the files are deleted after each iteration. Time depends on the disk as much as
+ * on the formatting, so compare runs on the same machine. -p payments=50000000 with
+ * -jvmArgsAppend "-Xmx6g -Dgateway.passwordIterations=1" runs the day the export is sized for; the option replaces
+ * the arguments given here rather than adding to them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dgateway.passwordIterations=1" })
+public class SettlementBenchmark {
+    @Param({ "10000" })
+    int users;
+
+    @Param({ "5000000" })
+    int payments;
+
+    @Param({ "CSV", "BINARY" })
+    String format;
+
+    Path directory;
+    SettlementExport.Format exportFormat;
+    SettlementExport export;
+
+    @Setup(Level.Trial)
+    public void populate() throws IOException {
+        directory = Files.createTempDirectory("gateway-settlement");
+        PaymentGateway gateway = new PaymentGateway();
+        String[] methods = { "UPI", "Credit Card", "Bank Account" };
+        User[] accounts = new User[users];
+        for (int i = 0; i < users; i++) {
+            accounts[i] = gateway.registerUser("user" + i, "pw" + i);
+        }
+        List<Product> products = gateway.getProducts();
+        long start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < payments; i++) {
+            gateway.restorePayment(accounts[i % users], products.get(i % products.size()), methods[i % methods.length],
+                    i % 10 != 0, start + i % TimeUnit.DAYS.toMillis(1));
+        }
+        exportFormat = SettlementExport.Format.valueOf(format);
+        export = new SettlementExport(gateway, directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Object export() throws IOException {
+        return export.export(exportFormat, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+}
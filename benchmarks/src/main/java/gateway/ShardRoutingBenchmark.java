@@ -0,0 +1,162 @@
+package gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What cluster mode costs a request. Two nodes on loopback: A is started in the benchmark's JVM, B in a child JVM
+ * from the same classpath, and a transactions page is fetched for a user owned by each.
+ *
+ * - ringOwner: finding a username's owner in a two-node HashRing
+ * - local: a request to A for a user A owns, which only adds the ring lookup
+ * - forwarded: a request to A for a user B owns, which A relays to B
+ * - direct: the same request sent straight to B
+ *
+ * forwarded minus direct is the extra hop a client pays for reaching the wrong node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g", "-Dgateway.passwordIterations=1" })
+public class ShardRoutingBenchmark {
+    private static final String SECRET = "benchmark";
+
+    HttpServer server;
+    Process child; // Node B
+    HttpClient client;
+    HashRing ring;
+    String[] usernames = new String[1024];
+    int next;
+    HttpRequest local;
+    HttpRequest forwarded;
+    HttpRequest direct;
+
+    @Setup
+    public void setUp() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        String nodeA = "http://127.0.0.1:" + portA;
+        String nodeB = "http://127.0.0.1:" + portB;
+        // Read when Main is first used, so A joins the cluster below
+        System.setProperty("gateway.cluster.self", nodeA);
+        System.setProperty("gateway.cluster.seeds", nodeB);
+        System.setProperty("gateway.cluster.secret", SECRET);
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        child = new ProcessBuilder(java, "-Xmx512m", "-Dgateway.port=" + portB, "-Dgateway.cluster.self=" + nodeB,
+                "-Dgateway.cluster.seeds=" + nodeA, "-Dgateway.cluster.secret=" + SECRET,
+                "-Dgateway.journal.durability=off", "-Dgateway.passwordIterations=1", "-Dgateway.log.level=warn",
+                "-cp", System.getProperty("java.class.path"), "gateway.Main")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        server = Main.startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), portA));
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        awaitNode(nodeB);
+
+        ring = new HashRing(List.of(nodeA, nodeB), Integer.getInteger("gateway.cluster.virtualNodes", 256));
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = "user" + i;
+        }
+        String ownedByA = owned(nodeA);
+        String ownedByB = owned(nodeB);
+        local = transactions(nodeA, login(nodeA, ownedByA));
+        forwarded = transactions(nodeA, login(nodeA, ownedByB));
+        direct = transactions(nodeB, login(nodeB, ownedByB));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        child.destroy();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void awaitNode(String node) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try {
+                client.send(HttpRequest.newBuilder(URI.create(node + "/")).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Node " + node + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private String owned(String node) {
+        for (String username : usernames) {
+            if (ring.owner(username).equals(node)) {
+                return username;
+            }
+        }
+        throw new IllegalStateException("No user owned by " + node);
+    }
+
+    // Registers the user through the node, which routes it to the owner, and returns a session token
+    private String login(String node, String username) throws Exception {
+        String credentials = "{\"username\":\"" + username + "\",\"password\":\"pw\"}";
+        send(HttpRequest.newBuilder(URI.create(node + "/api/register"))
+                .POST(HttpRequest.BodyPublishers.ofString(credentials)).build(), false);
+        String login = send(HttpRequest.newBuilder(URI.create(node + "/api/login"))
+                .POST(HttpRequest.BodyPublishers.ofString(credentials)).build(), true);
+        int start = login.indexOf("\"token\":\"") + 9;
+        return login.substring(start, login.indexOf('"', start));
+    }
+
+    private static HttpRequest transactions(String node, String token) {
+        return HttpRequest.newBuilder(URI.create(node + "/api/transactions?limit=20"))
+                .header("Authorization", "Bearer " + token)
+                .GET()
+                .build();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String ringOwner() {
+        return ring.owner(usernames[next++ & (usernames.length - 1)]);
+    }
+
+    @Benchmark
+    public String local() throws Exception {
+        return send(local, true);
+    }
+
+    @Benchmark
+    public String forwarded() throws Exception {
+        return send(forwarded, true);
+    }
+
+    @Benchmark
+    public String direct() throws Exception {
+        return send(direct, true);
+    }
+
+    private String send(HttpRequest request, boolean check) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (check && response.statusCode() != 200) {
+            throw new IllegalStateException(request.uri() + " answered " + response.statusCode());
+        }
+        return response.body();
+    }
+}
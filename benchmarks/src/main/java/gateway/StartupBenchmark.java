@@ -0,0 +1,96 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cold gateway startup from the journal alone against startup from a snapshot, over the same history. Each
+ * measurement is a single shot in a fresh gateway.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx6g", "-Dgateway.passwordIterations=1" })
+public class StartupBenchmark {
+    @Param({ "100000" })
+    int users;
+
+    @Param({ "1000000" })
+    long payments;
+
+    Path journalOnly;
+    Path snapshotted;
+
+    @Setup(Level.Trial)
+    public void populate() throws IOException {
+        journalOnly = Files.createTempDirectory("gateway-journal");
+        snapshotted = Files.createTempDirectory("gateway-snapshot");
+
+        // Populate through the normal request paths; fsyncs are off since only the files matter here
+        PaymentGateway gateway = new PaymentGateway();
+        PaymentJournal journal = PaymentJournal.open(journalOnly, PaymentJournal.Durability.NONE);
+        journal.recover(gateway, 0);
+        gateway.attachJournal(journal);
+        User[] accounts = new User[users];
+        Map<String, String> details = new HashMap<>();
+        details.put("upiId", "someone@bank");
+        for (int i = 0; i < users; i++) {
+            accounts[i] = gateway.registerUser("user" + i, "pw" + i);
+            gateway.updatePaymentMethod(accounts[i], "UPI", details);
+        }
+        List<Product> products = gateway.getProducts();
+        for (long i = 0; i < payments; i++) {
+            gateway.recordPayment(accounts[(int) (i % users)], products.get((int) (i % products.size())), "UPI", true);
+        }
+        journal.close();
+
+        // Same history, snapshotted, which also truncates that copy's journal
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(journalOnly)) {
+            for (Path file : files) {
+                Files.copy(file, snapshotted.resolve(file.getFileName()));
+            }
+        }
+        gateway = new PaymentGateway();
+        journal = PaymentJournal.open(snapshotted, PaymentJournal.Durability.NONE);
+        journal.recover(gateway, 0);
+        gateway.attachJournal(journal);
+        new GatewaySnapshot(snapshotted, gateway, journal).takeSnapshot();
+        journal.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        for (Path directory : new Path[] { journalOnly, snapshotted }) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Benchmark
+    public Object replayJournal() throws IOException {
+        PaymentGateway gateway = new PaymentGateway();
+        PaymentJournal journal = PaymentJournal.open(journalOnly, PaymentJournal.Durability.NONE);
+        journal.recover(gateway, 0);
+        journal.close();
+        return gateway;
+    }
+
+    @Benchmark
+    public Object loadSnapshot() throws IOException {
+        PaymentGateway gateway = new PaymentGateway();
+        PaymentJournal journal = PaymentJournal.open(snapshotted, PaymentJournal.Durability.NONE);
+        long snapshotLsn = new GatewaySnapshot(snapshotted, gateway, journal).load();
+        journal.recover(gateway, snapshotLsn);
+        journal.close();
+        return gateway;
+    }
+}
@@ -0,0 +1,69 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * PaymentStats: what recording adds to every payment, alone and with every thread updating the same product and
+ * method, and the cost of an /api/stats answer as the history grows, against summing revenue per product by
+ * scanning the TransactionStore, as answering without the aggregates would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Dgateway.passwordIterations=1" })
+public class StatsBenchmark {
+    @Param({ "1000", "1000000" })
+    int history;
+
+    PaymentGateway gateway;
+    PaymentStats stats;
+    Product product;
+
+    @Setup
+    public void setUp() {
+        gateway = new PaymentGateway();
+        User user = gateway.registerUser("payer", "pw");
+        gateway.updatePaymentMethod(user, "PayPal", Map.of());
+        for (int i = 0; i < history; i++) {
+            gateway.recordPayment(user, gateway.findProduct(i % 3), "PayPal", i % 10 != 0);
+        }
+        stats = new PaymentStats();
+        product = gateway.findProduct(0);
+    }
+
+    @Benchmark
+    public void record() {
+        stats.record(product, "UPI", 100_000, true, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        stats.record(product, "UPI", 100_000, true, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public void statsResponse() throws IOException {
+        JsonResponseWriter json = new JsonResponseWriter(OutputStream.nullOutputStream());
+        gateway.stats().write(json, gateway);
+        json.close();
+    }
+
+    @Benchmark
+    public long[] scanTransactions() {
+        TransactionStore store = gateway.transactionStore();
+        long[] revenue = new long[gateway.productCount()];
+        for (int i = 0, size = store.size(); i < size; i++) {
+            if (store.status(i) == TransactionStore.SUCCEEDED) {
+                revenue[store.productId(i)] += store.amount(i);
+            }
+        }
+        return revenue;
+    }
+}
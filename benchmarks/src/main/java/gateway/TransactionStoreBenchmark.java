@@ -0,0 +1,74 @@
+package gateway;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TransactionStore appends, and newest-first 20-row pages for random users as /api/transactions reads them. The
+ * page reads run against a store filled with transactions spread over users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TransactionStoreBenchmark {
+    @Param({ "10000000" })
+    int transactions;
+
+    @Param({ "1000000" })
+    int users;
+
+    TransactionStore filled;
+    int[] heads;
+    int[] probes = new int[4096];
+    int next;
+
+    TransactionStore appending;
+    int[] appendHeads;
+    int appended;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        filled = new TransactionStore(transactions);
+        heads = new int[users];
+        Arrays.fill(heads, TransactionStore.NONE);
+        for (int i = 0; i < transactions; i++) {
+            int user = i % users;
+            heads[user] = filled.append(user, heads[user], i % 3, (byte) 1, 100_000, TransactionStore.SUCCEEDED, i);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = heads[random.nextInt(users)];
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetAppends() {
+        appending = new TransactionStore(Integer.MAX_VALUE);
+        appendHeads = new int[users];
+        Arrays.fill(appendHeads, TransactionStore.NONE);
+        appended = 0;
+    }
+
+    @Benchmark
+    public int append() {
+        int i = appended++;
+        int user = i % users;
+        return appendHeads[user] = appending.append(user, appendHeads[user], i % 3, (byte) 1, 100_000,
+                TransactionStore.SUCCEEDED, i);
+    }
+
+    @Benchmark
+    public long readUserPage() {
+        long sum = 0;
+        int index = probes[next++ & (probes.length - 1)];
+        for (int n = 0; n < 20 && index != TransactionStore.NONE; n++) {
+            sum += filled.amount(index) + filled.productId(index);
+            index = filled.previous(index);
+        }
+        return sum;
+    }
+}
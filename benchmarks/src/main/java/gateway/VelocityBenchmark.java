@@ -0,0 +1,58 @@
+package gateway;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of the velocity rules on a payment: the failed-verification check plus the instrument and amount rules, for
+ * payers spread over a population of users with their own cards, alone and with every thread checking at once. The
+ * limits are high enough that every payment passes, so each check updates both windows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dgateway.passwordIterations=1" })
+public class VelocityBenchmark {
+    @Param({ "1000", "100000" })
+    int users;
+
+    VelocityRules rules;
+    User[] payers;
+
+    @Setup
+    public void setUp() {
+        rules = new VelocityRules(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 5, 262_144);
+        PaymentGateway gateway = new PaymentGateway();
+        payers = new User[users];
+        for (int i = 0; i < users; i++) {
+            payers[i] = gateway.registerUser("user" + i, "pw");
+            gateway.updatePaymentMethod(payers[i], "Credit Card", Map.of("cardNumber",
+                    String.format("4111 %04d %04d 1111", i / 10_000, i % 10_000)));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public Object check(Cursor cursor) {
+        return checkNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object checkContended(Cursor cursor) {
+        return checkNext(cursor);
+    }
+
+    private Object checkNext(Cursor cursor) {
+        User user = payers[cursor.next++ % users];
+        VelocityRules.Decline decline = rules.checkUser(user);
+        return decline != null ? decline : rules.check(user, "Credit Card", 100_000);
+    }
+}
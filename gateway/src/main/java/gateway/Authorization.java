@@ -0,0 +1,18 @@
+package gateway;
+
+/** An acquirer's decision on one payment. */
+final class Authorization {
+    static final Authorization APPROVED = new Authorization(true, null);
+
+    final boolean approved;
+    final String reason; // Shown to the payer when declined
+
+    private Authorization(boolean approved, String reason) {
+        this.approved = approved;
+        this.reason = reason;
+    }
+
+    static Authorization declined(String reason) {
+        return new Authorization(false, reason);
+    }
+}
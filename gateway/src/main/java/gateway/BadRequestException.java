@@ -0,0 +1,17 @@
+package gateway;
+
+import java.io.IOException;
+
+/**
+ * Thrown for request bodies the server refuses to process. The status is sent back to the client as-is.
+ */
+class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    BadRequestException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
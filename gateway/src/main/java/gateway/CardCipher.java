@@ -0,0 +1,122 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts card numbers before they are written to the journal or a snapshot, so neither holds one in plaintext.
+ * The gateway keeps the full number in memory because validation and velocity limits need it; only what reaches
+ * the disk is sealed.
+ *
+ * A sealed number is "gcm1:" followed by the Base64 of a random 12-byte IV and the AES-256-GCM ciphertext with its
+ * tag. The key is read from -Dgateway.cardKeyFile (default card.key in the journal directory) and created there on
+ * first start, readable only by its owner. Keep it somewhere else, such as a secrets mount, for copies of the
+ * journal to be of no use without it.
+ */
+final class CardCipher {
+    private static final String PREFIX = "gcm1:";
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(CardCipher::newCipher);
+
+    CardCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    /** The cipher for a journal kept in directory, with the key named by -Dgateway.cardKeyFile. */
+    static CardCipher forJournal(Path directory) throws IOException {
+        String keyFile = System.getProperty("gateway.cardKeyFile");
+        return open(keyFile != null ? Paths.get(keyFile) : directory.resolve("card.key"));
+    }
+
+    /** Loads the key from keyFile, generating and writing a new one when the file does not exist. */
+    static CardCipher open(Path keyFile) throws IOException {
+        if (Files.exists(keyFile)) {
+            byte[] encoded = Files.readAllBytes(keyFile);
+            if (encoded.length != KEY_BYTES) {
+                throw new IOException("Card key " + keyFile + " must be " + KEY_BYTES + " bytes");
+            }
+            return new CardCipher(new SecretKeySpec(encoded, "AES"));
+        }
+        SecretKey key;
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(KEY_BYTES * 8);
+            key = generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        Path parent = keyFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "card", ".key");
+        try {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file keeps the directory's default permissions
+        }
+        Files.write(temp, key.getEncoded());
+        Files.move(temp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+        GatewayLog.info("card-key.created", "file", keyFile);
+        return new CardCipher(key);
+    }
+
+    /** The form of number to write to disk; null stays null. */
+    String seal(String number) {
+        if (number == null) {
+            return null;
+        }
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+        byte[] plain = number.getBytes(StandardCharsets.UTF_8);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            byte[] sealed = new byte[IV_BYTES + cipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_BYTES);
+            cipher.doFinal(plain, 0, plain.length, sealed, IV_BYTES);
+            return PREFIX + Base64.getEncoder().encodeToString(sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The number a value written by seal() holds; fails if it was sealed under a different key. */
+    String open(String stored) throws IOException {
+        if (stored == null) {
+            return null;
+        }
+        if (!stored.startsWith(PREFIX)) {
+            throw new IOException("Card number is not sealed");
+        }
+        try {
+            byte[] sealed = Base64.getDecoder().decode(stored.substring(PREFIX.length()));
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            return new String(cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Card number cannot be decrypted; is the card key the one it was written with?", e);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
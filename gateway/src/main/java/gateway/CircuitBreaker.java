@@ -0,0 +1,90 @@
+package gateway;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calls to a dependency that keeps failing. After failureThreshold failures in a row the breaker opens and
+ * refuses calls for the open interval; then one trial call is let through. The trial's success closes the breaker
+ * and its failure opens it for another interval. Only calls that got no answer count as failures: a processor that
+ * declines payments is healthy.
+ */
+final class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile long openedAt; // System.nanoTime()
+
+    CircuitBreaker(int failureThreshold, long openNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    State state() {
+        return state.get();
+    }
+
+    /** Times the breaker has opened. */
+    int openedCount() {
+        return opened.get();
+    }
+
+    /** Nanoseconds until an open breaker lets a trial call through, or 0 when calls may be tried now. */
+    long retryAfterNanos() {
+        if (state.get() != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openedAt + openNanos - System.nanoTime());
+    }
+
+    /** Whether a call may go ahead; a true answer must be followed by recordSuccess or recordFailure. */
+    boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                state.compareAndSet(State.OPEN, State.HALF_OPEN);
+                return trialInFlight.compareAndSet(false, true);
+            default:
+                return trialInFlight.compareAndSet(false, true);
+        }
+    }
+
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() != State.CLOSED) {
+            state.set(State.CLOSED);
+            trialInFlight.set(false);
+        }
+    }
+
+    void recordFailure() {
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            open();
+        } else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.nanoTime(); // Before the state, so nobody sees it open since an older time
+            if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+                opened.incrementAndGet();
+            }
+        }
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        state.set(State.OPEN);
+        opened.incrementAndGet();
+        trialInFlight.set(false);
+    }
+}
@@ -0,0 +1,546 @@
+package gateway;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import com.sun.net.httpserver.*;
+
+/**
+ * Cluster mode: users are partitioned across gateway nodes by a HashRing over their usernames, and every node
+ * accepts every request. A request for a user another node owns is sent on to it and its answer relayed, so each
+ * user's sessions, payments, rate limits and history live on exactly one node.
+ *
+ * The owner is read from the request: register and login bodies carry the username, and every other call carries a
+ * session token, which starts with the user's ring position (see SessionCache). Forwarding is plain HTTP/1.1 over
+ * pooled keep-alive connections, made on the request's own thread, with the same path, method, body and API
+ * headers plus X-Gateway-Cluster holding -Dgateway.cluster.secret; -Dgateway.cluster.timeoutMs (5000) bounds the
+ * wait for the owner. A request bearing the secret is always handled where it lands, without client rate limits,
+ * so a forward never loops even while two nodes disagree about the members.
+ *
+ * A node is started with -Dgateway.cluster.self, the base URL the other nodes reach it at, and
+ * -Dgateway.cluster.seeds, a comma separated list of existing members to join through (none for the first node).
+ * Membership only grows: each node sends its member list to every other member whenever the list gains a node, and
+ * merges the lists it receives, so all nodes end up with the same ring. A node leaving is not detected; requests for
+ * its users answer 503 until it is back.
+ *
+ * After the ring changes, each node moves the users it no longer owns to their new owners,
+ * -Dgateway.cluster.moveBatch (500) to a request: the user, payment details, history and live sessions are copied in
+ * a compact binary form, journaled by the receiver, and only then dropped here. A user with payments still pending
+ * waits for them and moves on a later pass. While a move is in flight, the user's requests reach the new owner
+ * before the user does and answer 401, and a change that lands here after the copy answers 503 with Retry-After;
+ * retried, they succeed, and the client keeps its session. Payments made before the move are in the history it
+ * takes along, but their payment ids can no longer be polled. A periodic pass also moves users registered while
+ * the rings disagreed.
+ *
+ * A receiver that already holds a different account under the same name, registered on both nodes while their
+ * rings disagreed, refuses that user: the sender keeps it, with its sessions, and tries again on each periodic pass,
+ * while requests for the name reach the receiver's account.
+ *
+ * Each node's /api/stats counts the history of the users it holds, so the members' stats add up to each payment
+ * once: a moved user's history is taken out of the sender's stats and counted by the receiver. Products are not
+ * shared: a forwarded payment names a productId, which the owner looks up in its own catalog. Every member must be
+ * started with the same -Dgateway.catalog.file, and /api/admin/products changes, which apply to the node that
+ * receives them, must be made on each member, or a routed payment can charge a different product.
+ */
+final class ClusterNode {
+    /** How a context finds the user a request belongs to. */
+    enum Routing {
+        USERNAME, // The "username" field of the JSON body
+        SESSION // The bearer token
+    }
+
+    static final String PATH = "/internal/cluster/";
+    static final String SECRET_HEADER = "X-Gateway-Cluster";
+    private static final String MEMBERS_PATH = PATH + "members";
+    private static final String USERS_PATH = PATH + "users";
+    private static final String[] USERNAME_FIELD = { "username" };
+    private static final String[] FORWARDED_REQUEST_HEADERS = { "Authorization", "Content-Type", "Idempotency-Key",
+            "If-None-Match" };
+    private static final String[] RELAYED_RESPONSE_HEADERS = { "Content-Type", "Location", "Retry-After",
+            "WWW-Authenticate", "ETag", "Cache-Control", "Idempotent-Replayed" };
+    private static final int MEMBER_ATTEMPTS = 30;
+
+    private final String self;
+    private final byte[] secret;
+    private final String secretValue;
+    private final int virtualNodes;
+    private final int moveBatch;
+    private final int timeoutMillis;
+    private final PaymentGateway gateway;
+    private final SessionCache sessions;
+    private final ScheduledExecutorService background; // Member lists and moves, one at a time
+    private volatile HashRing ring;
+    private boolean rebalanceQueued; // Guarded by this
+    private final LatencyHistogram forwardLatency = new LatencyHistogram();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder forwardErrors = new LongAdder();
+    private final LongAdder usersSent = new LongAdder();
+    private final LongAdder usersReceived = new LongAdder();
+
+    ClusterNode(String self, List<String> seeds, String secret, int virtualNodes, int moveBatch, int timeoutMillis,
+            PaymentGateway gateway, SessionCache sessions) {
+        this.self = normalize(self);
+        // A request that may already have been handled, such as a payment, must not be sent a second time when a
+        // pooled connection turns out to be closed
+        if (System.getProperty("sun.net.http.retryPost") == null) {
+            System.setProperty("sun.net.http.retryPost", "false");
+        }
+        this.secretValue = secret;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.virtualNodes = virtualNodes;
+        this.moveBatch = moveBatch;
+        this.timeoutMillis = timeoutMillis;
+        this.gateway = gateway;
+        this.sessions = sessions;
+        this.background = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Seeds are members already, so requests for their users go to them from the start
+        Set<String> members = new TreeSet<>();
+        for (String seed : seeds) {
+            members.add(normalize(seed));
+        }
+        members.add(this.self);
+        this.ring = new HashRing(members, virtualNodes);
+    }
+
+    /** The node configured by system properties, or null when cluster mode is off. */
+    static ClusterNode fromSystemProperties(PaymentGateway gateway, SessionCache sessions) {
+        String self = System.getProperty("gateway.cluster.self");
+        if (self == null || self.isBlank()) {
+            return null;
+        }
+        String secret = System.getProperty("gateway.cluster.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("-Dgateway.cluster.secret is required in cluster mode");
+        }
+        List<String> seeds = new ArrayList<>();
+        for (String seed : System.getProperty("gateway.cluster.seeds", "").split(",")) {
+            if (!seed.isBlank()) {
+                seeds.add(seed.trim());
+            }
+        }
+        return new ClusterNode(self.trim(), seeds, secret, Integer.getInteger("gateway.cluster.virtualNodes", 256),
+                Integer.getInteger("gateway.cluster.moveBatch", 500),
+                Integer.getInteger("gateway.cluster.timeoutMs", 5000), gateway, sessions);
+    }
+
+    private static String normalize(String node) {
+        URI uri = URI.create(node.endsWith("/") ? node.substring(0, node.length() - 1) : node);
+        if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Cluster nodes are http://host:port URLs: " + node);
+        }
+        return uri.toString();
+    }
+
+    /**
+     * Announces this node to the seeds and starts the periodic pass; the seeds pass the news on. Called once the
+     * server is accepting requests, since members start moving users here straight away.
+     */
+    void start() {
+        for (String node : ring.nodes()) {
+            if (!node.equals(self)) {
+                sendMembers(node, ring.nodes(), 1);
+            }
+        }
+        background.scheduleWithFixedDelay(this::rebalance, 60, 60, TimeUnit.SECONDS);
+        GatewayLog.info("cluster.started", "self", self, "members", ring.nodes().size());
+    }
+
+    HashRing ring() {
+        return ring;
+    }
+
+    /** True when the request was forwarded by another member, which has already routed it. */
+    boolean isInternal(HttpExchange exchange) {
+        String value = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        return value != null && MessageDigest.isEqual(value.getBytes(StandardCharsets.UTF_8), secret);
+    }
+
+    /**
+     * Sends the request on to the node owning its user and relays the answer, returning true; returns false,
+     * leaving the request to the local handler, when this node owns the user or the request does not name one.
+     */
+    boolean route(HttpExchange exchange, Routing routing) throws IOException {
+        long hash;
+        byte[] body = null;
+        if (routing == Routing.SESSION) {
+            hash = SessionCache.ringHash(Main.bearerToken(exchange));
+        } else {
+            InputStream in = exchange.getRequestBody();
+            body = in.readNBytes(JsonRequestReader.MAX_BODY_BYTES + 1);
+            if (body.length > JsonRequestReader.MAX_BODY_BYTES) {
+                // Too large for any node; let the local handler refuse it
+                exchange.setStreams(new SequenceInputStream(new ByteArrayInputStream(body), in), null);
+                return false;
+            }
+            exchange.setStreams(new ByteArrayInputStream(body), null);
+            String username = username(body);
+            hash = username != null ? HashRing.hash(username) : 0;
+        }
+        String owner = hash != 0 ? ring.owner(hash) : null;
+        if (owner == null || owner.equals(self)) {
+            return false;
+        }
+        forward(exchange, owner, body);
+        return true;
+    }
+
+    private static String username(byte[] body) {
+        try {
+            return new JsonRequestReader(new ByteArrayInputStream(body), body.length).readObject(USERNAME_FIELD)
+                    .get("username");
+        } catch (IOException e) {
+            return null; // Malformed; the local handler answers it
+        }
+    }
+
+    // Relays the request to the owner on this thread; body is what was already read from it, or null to stream it
+    private void forward(HttpExchange exchange, String owner, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        URI uri = exchange.getRequestURI();
+        String method = exchange.getRequestMethod();
+        HttpURLConnection connection;
+        int status;
+        try {
+            connection = open(owner, uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : ""));
+            connection.setRequestMethod(method);
+            Headers headers = exchange.getRequestHeaders();
+            for (String name : FORWARDED_REQUEST_HEADERS) {
+                String value = headers.getFirst(name);
+                if (value != null) {
+                    connection.setRequestProperty(name, value);
+                }
+            }
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                connection.setDoOutput(true);
+                // Bodies are buffered and sent in one write with the headers, except large batches, which are
+                // streamed; a body written apart from its headers waits on the delayed ACK
+                String length = headers.getFirst("Content-Length");
+                if (body == null && length != null
+                        && Long.parseLong(length.trim()) <= JsonRequestReader.MAX_BODY_BYTES) {
+                    body = exchange.getRequestBody().readAllBytes();
+                } else if (body == null) {
+                    connection.setChunkedStreamingMode(0);
+                }
+                try (OutputStream out = connection.getOutputStream()) {
+                    if (body != null) {
+                        out.write(body);
+                    } else {
+                        exchange.getRequestBody().transferTo(out);
+                    }
+                }
+            }
+            status = connection.getResponseCode();
+        } catch (IOException | IllegalArgumentException e) {
+            forwardErrors.increment();
+            GatewayLog.warn("cluster.forward-failed", "node", owner, "path", uri.getPath(), "error", e);
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            try (JsonResponseWriter json = new JsonResponseWriter(exchange, 503)) {
+                json.beginObject();
+                json.name("success").value(false);
+                json.name("message").value("Node owning this account is unavailable");
+                json.endObject();
+            }
+            return;
+        }
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        for (String name : RELAYED_RESPONSE_HEADERS) {
+            String value = connection.getHeaderField(name);
+            if (value != null) {
+                responseHeaders.set(name, value);
+            }
+        }
+        // Reading the answer to the end lets the connection go back to the keep-alive pool
+        try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            long length = connection.getContentLengthLong();
+            exchange.sendResponseHeaders(status, in == null || length == 0 ? -1 : Math.max(length, 0));
+            try (OutputStream os = exchange.getResponseBody()) {
+                if (in != null) {
+                    in.transferTo(os);
+                }
+            }
+        }
+        forwardLatency.record(System.nanoTime() - start);
+        forwarded.increment();
+    }
+
+    private HttpURLConnection open(String node, String pathAndQuery) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(node + pathAndQuery).toURL().openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty(SECRET_HEADER, secretValue);
+        return connection;
+    }
+
+    // POSTs to another member's internal path and returns the answer, failing on anything but a 2xx status
+    private byte[] post(String node, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = open(node, path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        if (status / 100 != 2) {
+            connection.disconnect();
+            throw new IOException(node + path + " answered " + status);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Handles the members' own calls under PATH: member lists and moved users. */
+    void handleInternal(HttpExchange exchange) throws IOException {
+        try {
+            if (!isInternal(exchange)) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals(MEMBERS_PATH)) {
+                merge(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                byte[] reply = String.join("\n", ring.nodes()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, reply.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(reply);
+                }
+            } else if (path.equals(USERS_PATH)) {
+                // The answer lists the users refused, one username per line
+                List<String> refused = receiveUsers(
+                        new DataInputStream(new BufferedInputStream(exchange.getRequestBody(), 64 * 1024)));
+                byte[] reply = String.join("\n", refused).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, reply.length == 0 ? -1 : reply.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(reply);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (IllegalArgumentException | EOFException | UTFDataFormatException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Adds a member list, one URL per line, to the ring; when that changes it, tells every other member and starts
+    // moving users
+    private void merge(String list) {
+        List<String> nodes = new ArrayList<>();
+        for (String line : list.split("\n")) {
+            if (!line.isBlank()) {
+                nodes.add(normalize(line.trim()));
+            }
+        }
+        List<String> members;
+        synchronized (this) {
+            Set<String> union = new TreeSet<>(ring.nodes());
+            if (!union.addAll(nodes)) {
+                return;
+            }
+            ring = new HashRing(union, virtualNodes);
+            members = ring.nodes();
+        }
+        GatewayLog.info("cluster.members-changed", "members", String.join(",", members));
+        for (String node : members) {
+            if (!node.equals(self)) {
+                sendMembers(node, members, 1);
+            }
+        }
+        queueRebalance(0);
+    }
+
+    private void sendMembers(String node, List<String> members, int attempt) {
+        background.execute(() -> {
+            try {
+                byte[] list = String.join("\n", members).getBytes(StandardCharsets.UTF_8);
+                merge(new String(post(node, MEMBERS_PATH, list), StandardCharsets.UTF_8));
+            } catch (IOException | IllegalArgumentException e) {
+                if (attempt < MEMBER_ATTEMPTS) {
+                    background.schedule(() -> sendMembers(node, members, attempt + 1), 1, TimeUnit.SECONDS);
+                } else {
+                    GatewayLog.warn("cluster.members-unsent", "node", node, "error", e);
+                }
+            }
+        });
+    }
+
+    private synchronized void queueRebalance(long delaySeconds) {
+        if (!rebalanceQueued) {
+            rebalanceQueued = true;
+            background.schedule(() -> {
+                synchronized (this) {
+                    rebalanceQueued = false;
+                }
+                rebalance();
+            }, delaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // Moves every user this node no longer owns to its owner, coming back later for any left behind
+    private void rebalance() {
+        HashRing current = ring;
+        Map<String, List<User>> leaving = new TreeMap<>();
+        for (User user : gateway.users()) {
+            String owner = current.owner(user.username);
+            if (!owner.equals(self)) {
+                leaving.computeIfAbsent(owner, node -> new ArrayList<>()).add(user);
+            }
+        }
+        boolean complete = true;
+        for (Map.Entry<String, List<User>> entry : leaving.entrySet()) {
+            List<User> users = entry.getValue();
+            for (int from = 0; from < users.size(); from += moveBatch) {
+                complete &= moveUsers(entry.getKey(), users.subList(from, Math.min(users.size(), from + moveBatch)));
+            }
+        }
+        if (!complete) {
+            queueRebalance(1);
+        }
+    }
+
+    /*
+     * Body of a move, big-endian: per user byte 1 and the user as PaymentGateway.writeMovingUser writes it, byte 0;
+     * then per session byte 1, token, username, long nanoseconds left, byte 0. Returns true when every user moved or
+     * was refused; refused users wait for the periodic pass rather than being sent again straight away.
+     */
+    private boolean moveUsers(String owner, List<User> batch) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream userBytes = new ByteArrayOutputStream();
+        DataOutputStream userOut = new DataOutputStream(userBytes);
+        Set<User> moving = new HashSet<>();
+        Map<String, User> tokens = new HashMap<>();
+        try {
+            for (User user : batch) {
+                userBytes.reset();
+                if (gateway.writeMovingUser(user, userOut)) {
+                    out.writeByte(1);
+                    userBytes.writeTo(out);
+                    moving.add(user);
+                }
+            }
+            out.writeByte(0);
+            sessions.forEach(moving, (token, user, remainingNanos) -> {
+                out.writeByte(1);
+                out.writeUTF(token);
+                out.writeUTF(user.username);
+                out.writeLong(remainingNanos);
+                tokens.put(token, user);
+            });
+            out.writeByte(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Writing to memory
+        }
+        if (moving.isEmpty()) {
+            return batch.isEmpty();
+        }
+
+        Set<String> refused = new HashSet<>();
+        try {
+            String reply = new String(post(owner, USERS_PATH, bytes.toByteArray()), StandardCharsets.UTF_8);
+            for (String username : reply.split("\n")) {
+                if (!username.isEmpty()) {
+                    refused.add(username);
+                }
+            }
+        } catch (IOException e) {
+            for (User user : moving) {
+                gateway.cancelMove(user);
+            }
+            GatewayLog.warn("cluster.move-failed", "node", owner, "users", moving.size(), "error", e);
+            return false;
+        }
+        long lsn = 0;
+        int moved = 0;
+        for (User user : moving) {
+            if (refused.contains(user.username)) {
+                gateway.cancelMove(user);
+                GatewayLog.warn("cluster.move-refused", "node", owner, "user", user.username, "reason",
+                        "username taken by another account");
+            } else {
+                lsn = Math.max(lsn, gateway.removeMovedUser(user));
+                moved++;
+            }
+        }
+        int movedSessions = 0;
+        for (Map.Entry<String, User> session : tokens.entrySet()) {
+            if (!refused.contains(session.getValue().username)) {
+                sessions.invalidate(session.getKey());
+                movedSessions++;
+            }
+        }
+        gateway.awaitDurable(lsn);
+        usersSent.add(moved);
+        GatewayLog.info("cluster.users-moved", "node", owner, "users", moved, "refused", moving.size() - moved,
+                "sessions", movedSessions);
+        return moving.size() == batch.size();
+    }
+
+    // Returns the usernames refused because a different account holds them here
+    private List<String> receiveUsers(DataInputStream in) throws IOException {
+        long lsn = 0;
+        int received = 0;
+        List<String> refused = new ArrayList<>();
+        while (in.readByte() == 1) {
+            User user = gateway.readMovedUser(in, refused);
+            if (user != null) {
+                lsn = Math.max(lsn, user.lastLsn);
+                received++;
+            }
+        }
+        while (in.readByte() == 1) {
+            String token = in.readUTF();
+            String username = in.readUTF();
+            long remainingNanos = in.readLong();
+            // A refused user's sessions stay with the sender, never with the account holding the name here
+            User user = refused.contains(username) ? null : gateway.findUser(username);
+            if (user != null) {
+                sessions.adopt(token, user, remainingNanos);
+            }
+        }
+        // Answer only once the users are durable here, since the sender drops its copies on the answer
+        gateway.awaitDurable(lsn);
+        usersReceived.add(received);
+        return refused;
+    }
+
+    LatencyHistogram forwardLatency() {
+        return forwardLatency;
+    }
+
+    long forwardedCount() {
+        return forwarded.sum();
+    }
+
+    long forwardErrorCount() {
+        return forwardErrors.sum();
+    }
+
+    long usersSentCount() {
+        return usersSent.sum();
+    }
+
+    long usersReceivedCount() {
+        return usersReceived.sum();
+    }
+}
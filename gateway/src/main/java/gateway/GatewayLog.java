@@ -0,0 +1,292 @@
+package gateway;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured logger. Callers claim a slot in a fixed ring buffer with one CAS and publish the event;
+ * a single daemon thread formats published events as "time LEVEL event name=value ..." lines and writes them to
+ * stdout, so request threads never take the stdout lock or wait for I/O.
+ *
+ * Fields are masked when logged, before the event is queued: card and account numbers keep their last four
+ * digits, CVVs, passwords and tokens are replaced, and any other value containing a 12-or-more digit run has it
+ * masked the same way.
+ *
+ * When the buffer is full the event is dropped. With gateway.log.overflow=sample, once the buffer is three quarters
+ * full only one in gateway.log.sampleRate debug and info events is queued, keeping room for warnings and errors.
+ * Dropped events are counted and reported in the log.
+ */
+final class GatewayLog {
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final GatewayLog INSTANCE = fromSystemProperties();
+
+    private final Level threshold;
+    private final boolean sample;
+    private final int sampleRate;
+    private final int mask;
+    private final long highWater;
+    private final Event[] events;
+    private final AtomicLongArray published; // Sequence each slot last published, read by the writer thread
+    private final AtomicLong tail = new AtomicLong(); // Next sequence to claim
+    private volatile long head; // Next sequence to write; slots before it are free
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong sampled = new AtomicLong();
+    private final OutputStream out;
+    private final Thread writer;
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    private static final class Event {
+        Level level;
+        long time;
+        String name;
+        Object[] fields;
+        Throwable error;
+    }
+
+    GatewayLog(Level threshold, int capacity, boolean sample, int sampleRate, OutputStream out) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.threshold = threshold;
+        this.sample = sample;
+        this.sampleRate = Math.max(sampleRate, 1);
+        this.mask = size - 1;
+        this.highWater = size - size / 4;
+        this.events = new Event[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            events[i] = new Event();
+            published.set(i, -1);
+        }
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.writer = new Thread(this::drain, "gateway-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static GatewayLog fromSystemProperties() {
+        Level threshold = Level.valueOf(System.getProperty("gateway.log.level", "info").toUpperCase());
+        int capacity = Integer.getInteger("gateway.log.bufferSize", 8192);
+        boolean sample = System.getProperty("gateway.log.overflow", "drop").equalsIgnoreCase("sample");
+        int sampleRate = Integer.getInteger("gateway.log.sampleRate", 10);
+        GatewayLog log = new GatewayLog(threshold, capacity, sample, sampleRate,
+                new FileOutputStream(FileDescriptor.out));
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+        return log;
+    }
+
+    static void debug(String event, Object... fields) {
+        INSTANCE.log(Level.DEBUG, event, null, fields);
+    }
+
+    static void info(String event, Object... fields) {
+        INSTANCE.log(Level.INFO, event, null, fields);
+    }
+
+    static void warn(String event, Object... fields) {
+        INSTANCE.log(Level.WARN, event, null, fields);
+    }
+
+    static void error(String event, Throwable error, Object... fields) {
+        INSTANCE.log(Level.ERROR, event, error, fields);
+    }
+
+    static boolean isDebugEnabled() {
+        return INSTANCE.threshold == Level.DEBUG;
+    }
+
+    static long droppedCount() {
+        return INSTANCE.dropped.sum();
+    }
+
+    /** Queues an event; fields alternate names and values. Returns false when the event was dropped. */
+    boolean log(Level level, String event, Throwable error, Object... fields) {
+        if (level.compareTo(threshold) < 0) {
+            return true;
+        }
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            fields[i + 1] = mask(String.valueOf(fields[i]), fields[i + 1]);
+        }
+        long sequence = claim(level);
+        if (sequence < 0) {
+            dropped.increment();
+            return false;
+        }
+        Event slot = events[(int) sequence & mask];
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.name = event;
+        slot.fields = fields;
+        slot.error = error;
+        published.set((int) sequence & mask, sequence); // Volatile, so the idle check below cannot miss the writer
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    private long claim(Level level) {
+        if (closed) {
+            return -1;
+        }
+        while (true) {
+            long sequence = tail.get();
+            long queued = sequence - head;
+            if (queued > mask) {
+                return -1;
+            }
+            if (sample && queued >= highWater && level.compareTo(Level.INFO) <= 0
+                    && sampled.incrementAndGet() % sampleRate != 0) {
+                return -1;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /** Writes everything queued so far and stops the writer; later events are dropped. */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            long sequence = head;
+            int index = (int) sequence & mask;
+            if (published.get(index) != sequence) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    write(format(line, Level.WARN, System.currentTimeMillis(), "log.dropped", null,
+                            new Object[] { "events", drops - reportedDrops }));
+                    reportedDrops = drops;
+                }
+                flush();
+                if (closed && sequence == tail.get()) {
+                    return;
+                }
+                idle = true;
+                if (published.get(index) != sequence && !closed) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                idle = false;
+                continue;
+            }
+            Event event = events[index];
+            write(format(line, event.level, event.time, event.name, event.error, event.fields));
+            event.fields = null;
+            event.error = null;
+            head = sequence + 1;
+        }
+    }
+
+    private static StringBuilder format(StringBuilder line, Level level, long time, String event, Throwable error,
+            Object[] fields) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            String value = String.valueOf(fields[i + 1]);
+            if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0) {
+                line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+        line.append('\n');
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            line.append(maskDigits(trace.toString()));
+        }
+        return line;
+    }
+
+    private void write(StringBuilder formatted) {
+        try {
+            out.write(formatted.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            dropped.increment(); // Nowhere left to report it
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // Nothing to do; the next write will try again
+        }
+    }
+
+    private static Object mask(String name, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (name) {
+            case "cardNumber":
+                return PaymentMethods.mask("xxxx-xxxx-xxxx-", value.toString());
+            case "bankAccount":
+                return PaymentMethods.mask("xxxxxxxx", value.toString());
+            case "cardCVV":
+            case "password":
+            case "token":
+                return "***";
+            default:
+                return value instanceof String ? maskDigits((String) value) : value;
+        }
+    }
+
+    // Masks all but the last four digits of any run of 12 or more digits, allowing spaces and dashes inside it
+    static String maskDigits(String text) {
+        char[] masked = null;
+        int runStart = -1;
+        int digits = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : 'x';
+            if (c >= '0' && c <= '9') {
+                if (runStart < 0) {
+                    runStart = i;
+                    digits = 0;
+                }
+                digits++;
+            } else if (runStart >= 0 && (c == ' ' || c == '-') && i + 1 < text.length()
+                    && text.charAt(i + 1) >= '0' && text.charAt(i + 1) <= '9') {
+                continue; // Separator inside a run
+            } else if (runStart >= 0) {
+                if (digits >= 12) {
+                    if (masked == null) {
+                        masked = text.toCharArray();
+                    }
+                    int keep = 4;
+                    for (int j = i - 1; j >= runStart; j--) {
+                        if (masked[j] >= '0' && masked[j] <= '9') {
+                            if (keep > 0) {
+                                keep--;
+                            } else {
+                                masked[j] = 'x';
+                            }
+                        }
+                    }
+                }
+                runStart = -1;
+            }
+        }
+        return masked == null ? text : new String(masked);
+    }
+}
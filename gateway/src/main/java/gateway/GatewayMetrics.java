@@ -0,0 +1,260 @@
+package gateway;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Request and payment counters for /api/metrics, rendered in the Prometheus text format.
+ *
+ * Each context gets a filter that records its requests by status, latency and bytes read and written; recording is
+ * a few uncontended adds plus one atomic increment in a LatencyHistogram. Other state, such as sessions or executor
+ * queue depth, is registered as gauges and counters read only when metrics are scraped.
+ */
+final class GatewayMetrics {
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+    private static final String[] PAYMENT_RESULTS = { "succeeded", "failed", "rejected" };
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder[]> payments = new ConcurrentHashMap<>();
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+
+    private static final class Summary {
+        final String help;
+        final LatencyHistogram histogram;
+
+        Summary(String help, LatencyHistogram histogram) {
+            this.help = help;
+            this.histogram = histogram;
+        }
+    }
+
+    /** Counters for one context. Statuses outside 100-599, such as a handler that threw, count as status 0. */
+    static final class Endpoint {
+        final String path;
+        final LongAdder[] statuses = new LongAdder[600];
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+
+        Endpoint(String path) {
+            this.path = path;
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+        }
+
+        void record(int status, long nanos, long in, long out) {
+            statuses[status >= 100 && status < statuses.length ? status : 0].increment();
+            latency.record(nanos);
+            bytesIn.add(in);
+            bytesOut.add(out);
+        }
+    }
+
+    // Samples sharing a metric name, read from suppliers when scraped
+    private static final class Family {
+        final String type;
+        final String help;
+        final Map<String, LongSupplier> samples = new LinkedHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    /** Filter that records every exchange on the context at this path. */
+    Filter filter(String path) {
+        Endpoint endpoint = endpoints.computeIfAbsent(path, Endpoint::new);
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+                CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+                exchange.setStreams(in, out);
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    endpoint.record(exchange.getResponseCode(), System.nanoTime() - start, in.count, out.count);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Request metrics for " + path;
+            }
+        };
+    }
+
+    /** Counts a payment attempt; a null transaction means the payment method was rejected and nothing was charged. */
+    void recordPayment(String paymentMethod, Transaction transaction) {
+        String method = paymentMethod == null ? "none"
+                : PaymentMethod.forName(paymentMethod) != null ? paymentMethod : "unknown";
+        LongAdder[] results = payments.computeIfAbsent(method, m -> new LongAdder[] { new LongAdder(), new LongAdder(),
+                new LongAdder() });
+        results[transaction == null ? 2 : transaction.successful ? 0 : 1].increment();
+    }
+
+    /** Registers a gauge sample; labels are in Prometheus form, e.g. {result="hit"}, or empty. */
+    synchronized void gauge(String name, String labels, String help, LongSupplier value) {
+        register("gauge", name, labels, help, value);
+    }
+
+    /** Registers a monotonically increasing counter sample. */
+    synchronized void counter(String name, String labels, String help, LongSupplier value) {
+        register("counter", name, labels, help, value);
+    }
+
+    /** Registers a latency histogram, rendered in seconds as a summary with the endpoint quantiles. */
+    synchronized void summary(String name, String help, LatencyHistogram histogram) {
+        summaries.put(name, new Summary(help, histogram));
+    }
+
+    private void register(String type, String name, String labels, String help, LongSupplier value) {
+        families.computeIfAbsent(name, n -> new Family(type, help)).samples.put(labels, value);
+    }
+
+    /** Current values in the Prometheus text exposition format. */
+    synchronized String render() {
+        StringBuilder text = new StringBuilder(4096);
+        List<Endpoint> sorted = new ArrayList<>(endpoints.values());
+        sorted.sort(Comparator.comparing(endpoint -> endpoint.path));
+
+        header(text, "gateway_http_requests_total", "counter", "Requests handled, by context and response status.");
+        for (Endpoint endpoint : sorted) {
+            for (int status = 0; status < endpoint.statuses.length; status++) {
+                long count = endpoint.statuses[status].sum();
+                if (count > 0) {
+                    text.append("gateway_http_requests_total{endpoint=\"").append(escape(endpoint.path))
+                            .append("\",status=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        header(text, "gateway_http_request_duration_seconds", "summary",
+                "Time spent in the handler, over the life of the process.");
+        for (Endpoint endpoint : sorted) {
+            String label = "endpoint=\"" + escape(endpoint.path) + "\"";
+            quantiles(text, "gateway_http_request_duration_seconds", label, endpoint.latency);
+        }
+
+        header(text, "gateway_http_request_bytes_total", "counter", "Request body bytes read, by context.");
+        for (Endpoint endpoint : sorted) {
+            text.append("gateway_http_request_bytes_total{endpoint=\"").append(escape(endpoint.path)).append("\"} ")
+                    .append(endpoint.bytesIn.sum()).append('\n');
+        }
+        header(text, "gateway_http_response_bytes_total", "counter", "Response body bytes written, by context.");
+        for (Endpoint endpoint : sorted) {
+            text.append("gateway_http_response_bytes_total{endpoint=\"").append(escape(endpoint.path)).append("\"} ")
+                    .append(endpoint.bytesOut.sum()).append('\n');
+        }
+
+        header(text, "gateway_payments_total", "counter",
+                "Payment attempts by payment method and result; rejected attempts had no valid payment method.");
+        new TreeMap<>(payments).forEach((method, results) -> {
+            for (int i = 0; i < PAYMENT_RESULTS.length; i++) {
+                text.append("gateway_payments_total{method=\"").append(escape(method)).append("\",result=\"")
+                        .append(PAYMENT_RESULTS[i]).append("\"} ").append(results[i].sum()).append('\n');
+            }
+        });
+
+        families.forEach((name, family) -> {
+            header(text, name, family.type, family.help);
+            family.samples.forEach((labels, value) -> text.append(name).append(labels).append(' ')
+                    .append(value.getAsLong()).append('\n'));
+        });
+        summaries.forEach((name, summary) -> {
+            header(text, name, "summary", summary.help);
+            quantiles(text, name, "", summary.histogram);
+        });
+        return text.toString();
+    }
+
+    private static void quantiles(StringBuilder text, String name, String label, LatencyHistogram histogram) {
+        String separator = label.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(label).append(separator).append("quantile=\"").append(quantile)
+                    .append("\"} ").append(seconds(histogram.valueAtQuantile(quantile))).append('\n');
+        }
+        String labels = label.isEmpty() ? "" : "{" + label + "}";
+        text.append(name).append("_sum").append(labels).append(' ').append(seconds(histogram.sumNanos())).append('\n');
+        text.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return nanos == Long.MAX_VALUE ? "+Inf" : Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
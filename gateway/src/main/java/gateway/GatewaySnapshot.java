@@ -0,0 +1,327 @@
+package gateway;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Periodic full snapshots of PaymentGateway state, so startup loads one file and replays only the journal written
+ * since, instead of every record ever logged.
+ *
+ * A snapshot is taken while payments keep flowing. The journal is first rolled to a new segment N; each user is
+ * then copied under its own monitor together with the lsn of the last journal record applied to it. Every record in
+ * segments below N was applied before the copy started, so once the snapshot is safely on disk those segments are
+ * deleted. Records from segment N onward may or may not be in the copy of a given user; replay tells them apart by
+ * comparing lsns.
+ *
+ * Transactions are copied as a prefix of the TransactionStore columns taken after all users, so it holds at least
+ * every transaction each user copy counts. Loading keeps only the first transactionCount rows per user; later rows
+ * come back from the journal.
+ *
+ * File layout (big-endian, snapshot-NNNNNNNNNNNNNNNN.bin named after segment N):
+ *   long magic, int version, long first journal segment to replay
+ *   per user: byte 1, int id, username, password hash, payment method and its fields except the card
+ *             verification code (the card number sealed by the journal's CardCipher), long lastLsn,
+ *             int transaction count
+ *   byte 0
+ *   int product count, then per product: int id, name, double price
+ *   int payment method count m, then the names of method ids 1 to m - 1 (id 0 is none)
+ *   int transaction count n, then the columns one after another: int[n] user ids (-1 for users not in the
+ *             snapshot), int[n] product ids, long[n] amounts, byte[n] statuses, long[n] timestamps,
+ *             byte[n] payment method ids
+ *   long user count, long highest lsn in the snapshot
+ *   int crc32 of everything before it
+ * Strings are an int byte length (-1 for null) followed by UTF-8. Loading memory-maps the file and reads the
+ * columns side by side.
+ */
+final class GatewaySnapshot {
+    private static final long MAGIC = 0x5047534e41503031L; // "PGSNAP01"
+    private static final int VERSION = 3;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+    private final PaymentGateway gateway;
+    private final PaymentJournal journal;
+    private ScheduledExecutorService scheduler;
+    private long lastSnapshotLsn = -1;
+
+    GatewaySnapshot(Path directory, PaymentGateway gateway, PaymentJournal journal) {
+        this.directory = directory;
+        this.gateway = gateway;
+        this.journal = journal;
+    }
+
+    static Path directoryFromSystemProperties() {
+        return Paths.get(System.getProperty("gateway.journal.dir", "data"));
+    }
+
+    /** Takes a snapshot every -Dgateway.snapshot.intervalSeconds (default 300, 0 turns snapshots off). */
+    void scheduleFromSystemProperties() {
+        long interval = Long.getLong("gateway.snapshot.intervalSeconds", 300);
+        if (interval <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "gateway-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                takeSnapshot();
+            } catch (IOException | RuntimeException e) {
+                GatewayLog.error("snapshot.failed", e);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes a snapshot, then drops the journal segments and older snapshots it supersedes. Returns null without
+     * writing anything when nothing has been journaled since the last snapshot.
+     */
+    synchronized Path takeSnapshot() throws IOException {
+        if (journal.lastAssignedLsn() == lastSnapshotLsn) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long firstSegment = journal.startNewSegment();
+        Path target = directory.resolve(String.format("%s%016d%s", PREFIX, firstSegment, SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+
+        long users = 0;
+        BitSet copied = new BitSet();
+        long maxLsn = journal.lastAssignedLsn();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(firstSegment);
+            for (User user : gateway.users()) {
+                synchronized (user) {
+                    out.writeByte(1);
+                    out.writeInt(user.id);
+                    writeString(out, user.username);
+                    writeString(out, user.passwordHash);
+                    writeString(out, user.paymentMethod);
+                    writeString(out, journal.cards().seal(user.cardNumber));
+                    writeString(out, user.cardExpiry);
+                    writeString(out, user.bankAccount);
+                    writeString(out, user.upiId);
+                    out.writeLong(user.lastLsn);
+                    out.writeInt(user.transactionCount);
+                    maxLsn = Math.max(maxLsn, user.lastLsn);
+                }
+                copied.set(user.id);
+                users++;
+            }
+            out.writeByte(0);
+
+            // Products are interned before any row refers to them, so the rows copied below never miss one
+            TransactionStore store = gateway.transactionStore();
+            int rows = store.size();
+            int productCount = gateway.productCount();
+            out.writeInt(productCount);
+            for (int id = 0; id < productCount; id++) {
+                Product product = gateway.getProduct(id);
+                out.writeInt(product.id);
+                writeString(out, product.name);
+                out.writeDouble(product.price);
+            }
+            int methodCount = store.methodCount();
+            out.writeInt(methodCount);
+            for (int id = 1; id < methodCount; id++) {
+                writeString(out, store.methodName((byte) id));
+            }
+            out.writeInt(rows);
+            for (int i = 0; i < rows; i++) {
+                // Rows of users moved to another cluster node are kept out, so a reused id never claims them
+                int userId = store.userId(i);
+                out.writeInt(copied.get(userId) ? userId : -1);
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeInt(store.productId(i));
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeLong(store.amount(i));
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeByte(store.status(i));
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeLong(store.timestamp(i));
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeByte(store.method(i));
+            }
+            out.writeLong(users);
+            out.writeLong(maxLsn);
+            out.flush();
+            int crc = (int) checked.getChecksum().getValue();
+            out.writeInt(crc);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        lastSnapshotLsn = maxLsn;
+
+        journal.deleteSegmentsBefore(firstSegment);
+        for (Path old : listSnapshots()) {
+            if (!old.equals(target)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        GatewayLog.info("snapshot.written", "users", users, "file", target, "ms",
+                (System.nanoTime() - start) / 1_000_000);
+        return target;
+    }
+
+    /**
+     * Loads the newest snapshot into an empty gateway. Returns the highest lsn it contains, or 0 when there is no
+     * snapshot.
+     */
+    long load() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        Path path = snapshots.get(snapshots.size() - 1);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            // A mapping is limited to 2 GB, so the header and each column get their own
+            MappedByteBuffer data = map(channel, 0, Math.min(fileSize, Integer.MAX_VALUE));
+            if (fileSize < 40 || !checksumMatches(channel, fileSize) || data.getLong() != MAGIC
+                    || data.getInt() != VERSION) {
+                throw new IOException("Corrupt snapshot " + path);
+            }
+            data.getLong(); // First journal segment to replay; every remaining segment is replayed anyway
+
+            List<User> users = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            int maxId = -1;
+            while (data.get() == 1) {
+                int id = data.getInt();
+                String username = readString(data);
+                User user = new User(username, readString(data));
+                user.id = id;
+                user.paymentMethod = readString(data);
+                user.cardNumber = journal.cards().open(readString(data));
+                user.cardExpiry = readString(data);
+                user.bankAccount = readString(data);
+                user.upiId = readString(data);
+                user.lastLsn = data.getLong();
+                users.add(user);
+                counts.add(data.getInt());
+                maxId = Math.max(maxId, id);
+                gateway.restoreUser(user);
+            }
+            User[] byId = new User[maxId + 1];
+            int[] remaining = new int[maxId + 1];
+            for (int i = 0; i < users.size(); i++) {
+                byId[users.get(i).id] = users.get(i);
+                remaining[users.get(i).id] = counts.get(i);
+            }
+
+            // Product ids are re-interned, so map the ids in the file to this gateway's products
+            Product[] products = new Product[data.getInt()];
+            for (int i = 0; i < products.length; i++) {
+                int id = data.getInt();
+                String name = readString(data);
+                products[id] = gateway.resolveProduct(name, data.getDouble());
+            }
+            String[] methods = new String[data.getInt()];
+            for (int id = 1; id < methods.length; id++) {
+                methods[id] = readString(data);
+            }
+
+            int rows = data.getInt();
+            long offset = data.position();
+            MappedByteBuffer userIds = map(channel, offset, 4L * rows);
+            MappedByteBuffer productIds = map(channel, offset += 4L * rows, 4L * rows);
+            offset += 4L * rows + 8L * rows; // Amounts follow from the product price
+            MappedByteBuffer statuses = map(channel, offset, rows);
+            MappedByteBuffer timestamps = map(channel, offset += rows, 8L * rows);
+            offset += 8L * rows;
+            MappedByteBuffer methodIds = map(channel, offset, rows);
+            offset += rows;
+            for (int i = 0; i < rows; i++) {
+                int userId = userIds.getInt(4 * i);
+                if (userId < 0 || userId > maxId || byId[userId] == null || remaining[userId] == 0) {
+                    continue; // Row of a user gone from the copy, or written after it; the journal replays the latter
+                }
+                remaining[userId]--;
+                Product product = products[productIds.getInt(4 * i)];
+                boolean successful = statuses.get(i) == TransactionStore.SUCCEEDED;
+                gateway.restorePayment(byId[userId], product, methods[methodIds.get(i) & 0xFF], successful,
+                        timestamps.getLong(8 * i));
+            }
+            data = map(channel, offset, 16);
+            data.getLong(); // User count
+            return data.getLong();
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    // The last four bytes are the CRC32 of everything before them
+    private static boolean checksumMatches(FileChannel channel, long fileSize) throws IOException {
+        long bodyLength = fileSize - 4;
+        CRC32 crc = new CRC32();
+        for (long offset = 0; offset < bodyLength; offset += 1 << 30) {
+            crc.update(map(channel, offset, Math.min(1 << 30, bodyLength - offset)));
+        }
+        return map(channel, bodyLength, 4).getInt() == (int) crc.getValue();
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                snapshots.add(path);
+            }
+        }
+        Collections.sort(snapshots); // Zero-padded names sort by segment
+        return snapshots;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hashing of keys onto cluster nodes. Each node is placed at virtualNodes points on a ring of 64-bit
+ * hashes, and a key belongs to the node at the first point at or after the key's hash, wrapping around. Adding a
+ * node only takes over the keys just before its own points, about 1/N of them, spread over every other node; no key
+ * moves between two nodes that were already members.
+ *
+ * Immutable: a membership change builds a new ring. A lookup is a binary search over sorted primitive arrays.
+ */
+final class HashRing {
+    private final List<String> nodes;
+    private final long[] points; // Sorted
+    private final String[] owners; // owners[i] is the node at points[i]
+
+    HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = List.copyOf(new TreeSet<>(nodes));
+        int count = this.nodes.size() * virtualNodes;
+        long[] hashes = new long[count];
+        String[] byHash = new String[count];
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = hash(node + '#' + v);
+                byHash[i] = node;
+                i++;
+            }
+        }
+        // Sort the points, carrying their owners along; ties go to the smaller node name on every member
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compare(hashes[a], hashes[b])
+                : byHash[a].compareTo(byHash[b]));
+        this.points = new long[count];
+        this.owners = new String[count];
+        for (i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = byHash[order[i]];
+        }
+    }
+
+    /**
+     * The ring position of a key, such as a username: 64-bit FNV-1a over its UTF-8 bytes, spread by the murmur3
+     * finalizer, never 0. Every member must place keys alike, and session tokens carry the position, so this must
+     * not change.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash ^= 0x9e3779b97f4a7c15L;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /** The node owning the key, or null when the ring is empty. */
+    String owner(String key) {
+        return owner(hash(key));
+    }
+
+    /** The node owning a ring position, or null when the ring is empty. */
+    String owner(long hash) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            while (i > 0 && points[i - 1] == hash) {
+                i--; // First of equal points, so every member picks the same owner
+            }
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /** The members, sorted. */
+    List<String> nodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,194 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the response to each request sent with an Idempotency-Key, so a client retry gets the original answer
+ * back instead of being processed again.
+ *
+ * The first request with a key reserves it and later completes the reservation with the exact response bytes it
+ * sent. A duplicate arriving while the first is still running waits for that response rather than running alongside
+ * it; one arriving afterwards gets the stored bytes straight away. If the first request gives up the key (it failed
+ * with a server error), a waiting duplicate takes the reservation over and runs the request itself.
+ *
+ * A key is bound to the request it was first sent with: the reservation keeps a SHA-256 fingerprint of the method,
+ * path and body, and a later request with the same key but a different fingerprint is refused rather than answered
+ * with the first request's response, which would report a payment that was never made for it.
+ *
+ * Keys expire -Dgateway.idempotency.ttlSeconds after they are reserved and at most -Dgateway.idempotency.maxKeys
+ * are kept, evicting the oldest completed key first; a key whose request is still running is never evicted, or a
+ * retry would run alongside it. Keys are reserved in expiry order, so both limits are enforced from the head of one
+ * queue as new keys arrive.
+ */
+final class IdempotencyCache {
+    static final class StoredResponse {
+        final int status;
+        final byte[] body;
+        final String location; // The Location header sent with the response, or null
+
+        StoredResponse(int status, byte[] body, String location) {
+            this.status = status;
+            this.body = body;
+            this.location = location;
+        }
+    }
+
+    /** A key sent again with a request other than the one that reserved it. */
+    static final class KeyReusedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        KeyReusedException() {
+            super("Idempotency-Key was already used with a different request");
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final byte[] fingerprint;
+        final long expiresAt; // System.nanoTime() deadline
+        final CompletableFuture<StoredResponse> response = new CompletableFuture<>();
+
+        Entry(String key, byte[] fingerprint, long expiresAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** Either a stored response to replay, or ownership of the key until complete() or release() is called. */
+    final class Reservation {
+        private final Entry entry;
+        private final StoredResponse replay;
+
+        private Reservation(Entry entry, StoredResponse replay) {
+            this.entry = entry;
+            this.replay = replay;
+        }
+
+        /** The response to send again, or null when the caller owns the key and must process the request. */
+        StoredResponse replay() {
+            return replay;
+        }
+
+        /** Stores the response for retries. Only the first call has any effect. */
+        void complete(int status, byte[] body, String location) {
+            entry.response.complete(new StoredResponse(status, body, location));
+        }
+
+        /**
+         * Gives the key up without a response, so the next request with it is processed normally. Does nothing once
+         * the reservation has been completed.
+         */
+        void release() {
+            if (entry.response.isDone()) {
+                return;
+            }
+            entries.remove(entry.key, entry);
+            entry.response.completeExceptionally(new CancellationException("Request failed"));
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> reservationOrder = new ConcurrentLinkedQueue<>();
+    private final long ttlNanos;
+    private final int maxKeys;
+    private final long waitMillis;
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    IdempotencyCache(long ttlSeconds, int maxKeys, long waitMillis) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxKeys = maxKeys;
+        this.waitMillis = waitMillis;
+    }
+
+    static IdempotencyCache fromSystemProperties() {
+        return new IdempotencyCache(Long.getLong("gateway.idempotency.ttlSeconds", 86_400),
+                Integer.getInteger("gateway.idempotency.maxKeys", 100_000), 30_000);
+    }
+
+    /** The fingerprint reserve() compares: a SHA-256 of the request method, path and body. */
+    static byte[] fingerprint(String method, String path, byte[] body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((method + " " + path + "\n").getBytes(StandardCharsets.UTF_8));
+            return digest.digest(body);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reserves the key for the request with this fingerprint, or returns the response already stored for it,
+     * waiting for an in-flight original first. Throws KeyReusedException when the key was reserved by a different
+     * request, and TimeoutException when the original is still running after the wait limit.
+     */
+    Reservation reserve(String key, byte[] fingerprint)
+            throws InterruptedException, TimeoutException, KeyReusedException {
+        while (true) {
+            long now = System.nanoTime();
+            evictExpired(now);
+            Entry fresh = new Entry(key, fingerprint, now + ttlNanos);
+            Entry existing = entries.putIfAbsent(key, fresh);
+            if (existing == null) {
+                reservationOrder.add(fresh);
+                evictOverflow();
+                return new Reservation(fresh, null);
+            }
+            if (now - existing.expiresAt > 0) {
+                entries.remove(key, existing);
+                continue;
+            }
+            if (!MessageDigest.isEqual(existing.fingerprint, fingerprint)) {
+                throw new KeyReusedException();
+            }
+            try {
+                StoredResponse stored = existing.response.get(waitMillis, TimeUnit.MILLISECONDS);
+                replays.increment();
+                return new Reservation(existing, stored);
+            } catch (ExecutionException | CancellationException e) {
+                // The original released the key; try to reserve it again
+            }
+        }
+    }
+
+    private void evictExpired(long now) {
+        Entry head;
+        while ((head = reservationOrder.peek()) != null && now - head.expiresAt > 0) {
+            if (reservationOrder.remove(head)) {
+                entries.remove(head.key, head);
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Entry> oldest = reservationOrder.iterator();
+        while (entries.size() > maxKeys && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (!entry.response.isDone()) {
+                continue; // Still running
+            }
+            oldest.remove();
+            if (entries.remove(entry.key, entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long replays() {
+        return replays.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,400 @@
+package gateway;
+
+import java.io.*;
+import com.sun.net.httpserver.*;
+
+/**
+ * Incremental JSON reader for request bodies.
+ *
+ * Reads straight from the exchange InputStream through a small byte buffer, decoding UTF-8 as it goes. Only the
+ * fields the handler names are turned into Strings; every other key and value (including nested objects and
+ * arrays) is scanned and skipped without allocating. Strings, numbers, booleans and null are all bound as their
+ * text so handlers keep working with Strings. Bodies larger than the configured cap are rejected with 413 as soon
+ * as the cap is crossed, or up front when Content-Length already exceeds it.
+ *
+ * A body that is a top-level array of objects can be consumed one element at a time with open(), beginArray(),
+ * nextElement() and readObject(), so handlers never hold the whole body.
+ */
+final class JsonRequestReader {
+    static final int MAX_BODY_BYTES = Integer.getInteger("gateway.maxBodyBytes", 64 * 1024);
+    private static final int MAX_DEPTH = 32;
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final byte[] buffer = new byte[1024];
+    private int position;
+    private int limit;
+    private long consumed;
+    private char[] chars = new char[64];
+    private int length;
+    private boolean arrayStart;
+
+    JsonRequestReader(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    static RequestFields read(HttpExchange exchange, String[] names) throws IOException {
+        return open(exchange, MAX_BODY_BYTES).readObject(names);
+    }
+
+    /** Returns a reader over the request body, refusing bodies whose Content-Length is above maxBytes. */
+    static JsonRequestReader open(HttpExchange exchange, long maxBytes) throws IOException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxBytes) {
+                    throw tooLarge();
+                }
+            } catch (NumberFormatException e) {
+                throw new BadRequestException(400, "Invalid Content-Length");
+            }
+        }
+        return new JsonRequestReader(exchange.getRequestBody(), maxBytes);
+    }
+
+    /** Consumes the opening bracket of a top-level array. */
+    void beginArray() throws IOException {
+        expect('[');
+        arrayStart = true;
+    }
+
+    /** Moves past the separator before the next array element. Returns false once the closing bracket is read. */
+    boolean nextElement() throws IOException {
+        int c = skipWhitespace();
+        if (arrayStart) {
+            arrayStart = false;
+            if (c == ']') {
+                position++;
+                return false;
+            }
+            return true;
+        }
+        position++;
+        if (c == ']') {
+            return false;
+        }
+        if (c != ',') {
+            throw malformed();
+        }
+        return true;
+    }
+
+    /** Reads one JSON object and binds the values of the named top-level fields. */
+    RequestFields readObject(String[] names) throws IOException {
+        String[] values = new String[names.length];
+        expect('{');
+        int c = skipWhitespace();
+        if (c == '}') {
+            position++;
+            return new RequestFields(names, values);
+        }
+        while (true) {
+            expect('"');
+            readString(true);
+            int field = matchName(names);
+            expect(':');
+            if (field >= 0) {
+                values[field] = readScalar();
+            } else {
+                skipValue(0);
+            }
+            c = skipWhitespace();
+            position++;
+            if (c == '}') {
+                return new RequestFields(names, values);
+            }
+            if (c != ',') {
+                throw malformed();
+            }
+        }
+    }
+
+    private int matchName(String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.length() != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && name.charAt(j) == chars[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the value as text: unescaped for strings, the literal for numbers and booleans, null for null
+    private String readScalar() throws IOException {
+        int c = skipWhitespace();
+        if (c == '"') {
+            position++;
+            readString(true);
+            return new String(chars, 0, length);
+        }
+        if (c == '{' || c == '[') {
+            skipValue(0);
+            return null;
+        }
+        readLiteral();
+        if (isKeyword("null")) {
+            return null;
+        }
+        return new String(chars, 0, length);
+    }
+
+    private void skipValue(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw malformed();
+        }
+        int c = skipWhitespace();
+        if (c == '"') {
+            position++;
+            readString(false);
+        } else if (c == '{' || c == '[') {
+            position++;
+            int close = c == '{' ? '}' : ']';
+            if (skipWhitespace() == close) {
+                position++;
+                return;
+            }
+            while (true) {
+                if (close == '}') {
+                    expect('"');
+                    readString(false);
+                    expect(':');
+                }
+                skipValue(depth + 1);
+                int next = skipWhitespace();
+                position++;
+                if (next == close) {
+                    return;
+                }
+                if (next != ',') {
+                    throw malformed();
+                }
+            }
+        } else {
+            readLiteral();
+        }
+    }
+
+    // Numbers, true, false and null, checked against the JSON grammar whether the value is bound or skipped
+    private void readLiteral() throws IOException {
+        length = 0;
+        while (true) {
+            int c = peek();
+            boolean literal = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.'
+                    || c == 'E';
+            if (!literal) {
+                break;
+            }
+            position++;
+            append((char) c);
+        }
+        if (!isKeyword("true") && !isKeyword("false") && !isKeyword("null") && !isNumber()) {
+            throw malformed();
+        }
+    }
+
+    private boolean isKeyword(String keyword) {
+        if (length != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -? (0 | [1-9][0-9]*) (.[0-9]+)? ([eE][+-]?[0-9]+)?
+    private boolean isNumber() {
+        int i = 0;
+        if (i < length && chars[i] == '-') {
+            i++;
+        }
+        if (i < length && chars[i] == '0') {
+            i++;
+        } else {
+            int start = i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && chars[i] == '.') {
+            int start = ++i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            if (i < length && (chars[i] == '+' || chars[i] == '-')) {
+                i++;
+            }
+            int start = i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private int skipDigits(int i) {
+        while (i < length && chars[i] >= '0' && chars[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    // Reads the rest of a string whose opening quote has been consumed
+    private void readString(boolean keep) throws IOException {
+        length = 0;
+        while (true) {
+            int b = next();
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                int escaped = next();
+                char decoded;
+                switch (escaped) {
+                    case '"': case '\\': case '/': decoded = (char) escaped; break;
+                    case 'b': decoded = '\b'; break;
+                    case 'f': decoded = '\f'; break;
+                    case 'n': decoded = '\n'; break;
+                    case 'r': decoded = '\r'; break;
+                    case 't': decoded = '\t'; break;
+                    case 'u': decoded = (char) readHex4(); break;
+                    default: throw malformed();
+                }
+                if (keep) {
+                    append(decoded);
+                }
+            } else if (b < 0x20) {
+                throw malformed(); // Unescaped control character or end of input
+            } else if (b < 0x80) {
+                if (keep) {
+                    append((char) b);
+                }
+            } else {
+                int codePoint = decodeUtf8(b);
+                if (keep) {
+                    if (codePoint >= 0x10000) {
+                        append(Character.highSurrogate(codePoint));
+                        append(Character.lowSurrogate(codePoint));
+                    } else {
+                        append((char) codePoint);
+                    }
+                }
+            }
+        }
+    }
+
+    private int decodeUtf8(int lead) throws IOException {
+        int extra;
+        int codePoint;
+        if ((lead & 0xE0) == 0xC0) {
+            extra = 1;
+            codePoint = lead & 0x1F;
+        } else if ((lead & 0xF0) == 0xE0) {
+            extra = 2;
+            codePoint = lead & 0x0F;
+        } else if ((lead & 0xF8) == 0xF0) {
+            extra = 3;
+            codePoint = lead & 0x07;
+        } else {
+            throw malformed();
+        }
+        for (int i = 0; i < extra; i++) {
+            int b = next();
+            if ((b & 0xC0) != 0x80) {
+                throw malformed();
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if (codePoint > 0x10FFFF) {
+            throw malformed();
+        }
+        return codePoint;
+    }
+
+    private int readHex4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(next(), 16);
+            if (digit < 0) {
+                throw malformed();
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private void append(char c) {
+        if (length == chars.length) {
+            char[] grown = new char[chars.length * 2];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+        chars[length++] = c;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (skipWhitespace() != expected) {
+            throw malformed();
+        }
+        position++;
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if (c < 0) {
+            throw malformed();
+        }
+        position++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+            consumed += limit;
+            if (consumed > maxBytes) {
+                throw tooLarge();
+            }
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private static BadRequestException malformed() {
+        return new BadRequestException(400, "Malformed request body");
+    }
+
+    private static BadRequestException tooLarge() {
+        return new BadRequestException(413, "Request body too large");
+    }
+}
@@ -0,0 +1,297 @@
+package gateway;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import com.sun.net.httpserver.*;
+
+/**
+ * Writes a JSON response straight into a UTF-8 byte buffer, escaping string values on the way.
+ *
+ * Buffers come from a small shared pool. A response that fits in one buffer goes out with an exact Content-Length
+ * and a single write; once a response outgrows the buffer the writer switches to chunked transfer encoding and
+ * streams each full buffer to the client, so large payloads never have to be held in memory at once.
+ *
+ * A writer given a capture stream also copies every byte it sends into it, so a rendered response can be kept and
+ * sent again later with send(). A writer built on a plain OutputStream renders into it without any exchange, for
+ * bodies that are prepared ahead of the requests that serve them.
+ *
+ * A writer closed with its top-level value still open was left by an exception, and sends nothing more. If nothing
+ * had gone out yet, the caller can still send an error response; if streaming had started, the chunked body is left
+ * unterminated and the exchange is not closed, so the exception reaches the server and it drops the connection. The
+ * client then sees a broken response rather than a truncated body that looks complete.
+ */
+final class JsonResponseWriter implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(64);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final HttpExchange exchange;
+    private final int status;
+    private final ByteArrayOutputStream capture;
+    private byte[] buffer;
+    private int count;
+    private long flushed;
+    private OutputStream stream; // Set once the response has switched to chunked streaming
+
+    // Bit n is set when the container at depth n already holds an element and the next one needs a comma
+    private long commaBits;
+    private int depth;
+    private boolean afterName;
+
+    JsonResponseWriter(HttpExchange exchange, int status) {
+        this(exchange, status, null);
+    }
+
+    JsonResponseWriter(HttpExchange exchange, int status, ByteArrayOutputStream capture) {
+        this.exchange = exchange;
+        this.status = status;
+        this.capture = capture;
+        byte[] pooled = POOL.poll();
+        this.buffer = pooled != null ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    JsonResponseWriter(OutputStream out) {
+        this(null, 0, null);
+        this.stream = out;
+    }
+
+    JsonResponseWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonResponseWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonResponseWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonResponseWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /** Writes an object key; names are expected to be plain ASCII identifiers. */
+    JsonResponseWriter name(String name) throws IOException {
+        separator();
+        ensure(name.length() + 3);
+        buffer[count++] = '"';
+        for (int i = 0; i < name.length(); i++) {
+            buffer[count++] = (byte) name.charAt(i);
+        }
+        buffer[count++] = '"';
+        buffer[count++] = ':';
+        afterName = true;
+        return this;
+    }
+
+    JsonResponseWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separator();
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensure(2);
+                    buffer[count++] = '\\';
+                    buffer[count++] = (byte) c;
+                } else if (c < 0x20) {
+                    ensure(6);
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'u';
+                    buffer[count++] = '0';
+                    buffer[count++] = '0';
+                    buffer[count++] = HEX[c >> 4];
+                    buffer[count++] = HEX[c & 0xF];
+                } else {
+                    writeByte(c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD'; // Unpaired surrogate
+                }
+                ensure(3);
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+        return this;
+    }
+
+    JsonResponseWriter value(boolean value) throws IOException {
+        separator();
+        return ascii(value ? "true" : "false");
+    }
+
+    JsonResponseWriter value(long value) throws IOException {
+        separator();
+        writeLong(value);
+        return this;
+    }
+
+    /** Writes a number; NaN and the infinities have no JSON form and are written as null. */
+    JsonResponseWriter value(double value) throws IOException {
+        if (!Double.isFinite(value)) {
+            return nullValue();
+        }
+        separator();
+        // Whole amounts are the common case; write them without going through Double.toString
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+            return ascii(".0");
+        }
+        return ascii(Double.toString(value));
+    }
+
+    JsonResponseWriter nullValue() throws IOException {
+        separator();
+        return ascii("null");
+    }
+
+    /** Sends a response rendered earlier. */
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /** Number of bytes written so far, including any already streamed out. */
+    long size() {
+        return flushed + count;
+    }
+
+    /**
+     * Sends whatever has not been sent yet and completes the exchange, unless the response was left unfinished.
+     * Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (depth != 0) {
+                return;
+            }
+            if (stream == null) {
+                startResponse(count);
+            }
+            write();
+            stream.close();
+        } finally {
+            POOL.offer(buffer);
+            buffer = null;
+        }
+    }
+
+    private void startResponse(long length) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            // An error response after an aborted one: fail so the connection is dropped instead
+            throw new IOException("Response already started");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, length);
+        stream = exchange.getResponseBody();
+    }
+
+    private JsonResponseWriter open(char bracket) throws IOException {
+        separator();
+        writeByte(bracket);
+        depth++;
+        commaBits &= ~(1L << depth);
+        return this;
+    }
+
+    private JsonResponseWriter close(char bracket) throws IOException {
+        depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        long bit = 1L << depth;
+        if ((commaBits & bit) != 0) {
+            writeByte(',');
+        } else {
+            commaBits |= bit;
+        }
+    }
+
+    private JsonResponseWriter ascii(String text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        // Digits were written least significant first
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void ensure(int needed) throws IOException {
+        if (count + needed <= buffer.length) {
+            return;
+        }
+        if (stream == null) {
+            startResponse(0); // Length unknown from here on, use chunked encoding
+        }
+        write();
+        flushed += count;
+        count = 0;
+    }
+
+    private void write() throws IOException {
+        stream.write(buffer, 0, count);
+        if (capture != null) {
+            capture.write(buffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,1165 @@
+package gateway;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+
+class Main {
+    private static final PaymentGateway gateway = new PaymentGateway();
+    private static final SessionCache sessions = SessionCache.fromSystemProperties();
+    private static final ClusterNode cluster = ClusterNode.fromSystemProperties(gateway, sessions); // Null if off
+    private static final IdempotencyCache idempotency = IdempotencyCache.fromSystemProperties();
+    private static final PaymentPipeline payments = createPipeline();
+    private static final VelocityRules velocity = VelocityRules.fromSystemProperties();
+    private static final StaticFiles site = StaticFiles.fromSystemProperties(); // Null without a public directory
+    private static final SettlementExport settlements = SettlementExport.fromSystemProperties(gateway);
+    private static final GatewayMetrics metrics = createMetrics();
+    private static final Map<String, RateLimits> rateLimits = new ConcurrentHashMap<>(); // By context path
+
+    // Request fields each handler binds from the JSON body
+    private static final String[] CREDENTIAL_FIELDS = { "username", "password" };
+    private static final String[] PAYMENT_FIELDS = { "productId" };
+    private static final String[] PRODUCT_FIELDS = { "name", "price" };
+    private static final String[] BATCH_ITEM_FIELDS = PAYMENT_FIELDS;
+    private static final String[] SETTLEMENT_FIELDS = { "format", "from", "to" };
+    private static final String[] PAYMENT_METHOD_FIELDS = { "paymentMethod", "cardNumber", "cardExpiry", "cardCVV",
+            "bankAccount", "upiId" };
+    private static RequestExecutor executor;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_BATCH_ITEMS = Integer.getInteger("gateway.batch.maxItems", 10_000);
+    private static final long MAX_BATCH_BYTES = Long.getLong("gateway.batch.maxBodyBytes", 4L * 1024 * 1024);
+    private static final int BATCH_CHUNK_SIZE = 256;
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final String PAYMENT_PATH = "/api/payment";
+    private static final String ADMIN_PRODUCTS_PATH = "/api/admin/products";
+    private static final String ADMIN_TOKEN = System.getProperty("gateway.adminToken"); // Admin API is off if unset
+    private static final byte[] WELCOME = "Welcome to SimplePayment Gateway!".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException {
+        if (gateway.catalog().loadFromSystemProperties()) {
+            GatewayLog.info("catalog.loaded", "products", gateway.getProducts().size(), "file",
+                    System.getProperty("gateway.catalog.file"));
+        }
+
+        // Rebuild state from the latest snapshot and the journal written since, before accepting requests
+        PaymentJournal journal = PaymentJournal.fromSystemProperties();
+        if (journal != null) {
+            long start = System.nanoTime();
+            GatewaySnapshot snapshots = new GatewaySnapshot(GatewaySnapshot.directoryFromSystemProperties(), gateway,
+                    journal);
+            long snapshotLsn = snapshots.load();
+            long loaded = System.nanoTime();
+            long records = journal.recover(gateway, snapshotLsn);
+            gateway.attachJournal(journal);
+            snapshots.scheduleFromSystemProperties();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                snapshots.shutdown();
+                journal.close();
+            }));
+            GatewayLog.info("startup.recovered", "snapshotMs", (loaded - start) / 1_000_000, "records", records,
+                    "replayMs", (System.nanoTime() - loaded) / 1_000_000, "durability",
+                    journal.durability().name().toLowerCase());
+        }
+
+        HttpServer server = startServer(new InetSocketAddress(Integer.getInteger("gateway.port", 8080)));
+        GatewayLog.info("server.started", "port", server.getAddress().getPort(), "executor",
+                executor.mode().name().toLowerCase());
+        if (cluster != null) {
+            cluster.start();
+        }
+    }
+
+    /**
+     * Starts serving the API for this process's gateway on the address; port 0 picks a free one. main() calls it
+     * once startup recovery is done, benchmarks call it directly to drive the handlers in-process.
+     */
+    static HttpServer startServer(InetSocketAddress address) throws IOException {
+        // The JDK server writes headers and body separately; with Nagle on, every response after the first on a
+        // keep-alive connection waits out the client's delayed ACK (~40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer server = HttpServer.create(address, 0);
+
+        // In cluster mode the user's own calls go to the node owning the user; the rest answer for this node
+        apiContext(server, "/api/register", Main::handleRegister, ClusterNode.Routing.USERNAME);
+        apiContext(server, "/api/login", Main::handleLogin, ClusterNode.Routing.USERNAME);
+        apiContext(server, "/api/logout", Main::handleLogout, ClusterNode.Routing.SESSION);
+        apiContext(server, "/api/products", Main::handleGetProducts);
+        apiContext(server, ADMIN_PRODUCTS_PATH, Main::handleAdminProducts);
+        apiContext(server, "/api/payment", Main::handlePayment, ClusterNode.Routing.SESSION);
+        apiContext(server, "/api/payments/batch", Main::handleBatchPayment, ClusterNode.Routing.SESSION);
+        apiContext(server, "/api/payment-method", Main::handleUpdatePaymentMethod, ClusterNode.Routing.SESSION);
+        apiContext(server, "/api/transactions", Main::handleGetTransactions, ClusterNode.Routing.SESSION);
+        apiContext(server, "/api/metrics", Main::handleMetrics);
+        apiContext(server, "/api/stats", Main::handleStats);
+        apiContext(server, "/api/admin/settlement", Main::handleSettlement);
+        if (cluster != null) {
+            // On the workers and shed like the API, since a move waits for the journal; members retry refused calls
+            apiContext(server, ClusterNode.PATH, cluster::handleInternal);
+        }
+
+        // The web UI, so it needs no other server; a welcome line when there is none
+        apiContext(server, "/", site != null ? site::handle : exchange -> {
+            exchange.sendResponseHeaders(200, WELCOME.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(WELCOME);
+            }
+        });
+
+        executor = RequestExecutor.fromSystemProperties();
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    static PaymentGateway gateway() {
+        return gateway;
+    }
+
+    private static void apiContext(HttpServer server, String path, HttpHandler handler) {
+        apiContext(server, path, handler, null);
+    }
+
+    // Registers a context that records metrics, sets CORS headers, answers preflight requests, sheds load when
+    // saturated and applies the context's global and per-IP rate limits before the handler reads anything. In
+    // cluster mode, requests are then sent on to the owning node as routing says; those that arrive forwarded were
+    // limited and routed by the member that took them
+    private static void apiContext(HttpServer server, String path, HttpHandler handler, ClusterNode.Routing routing) {
+        RateLimits limits = RateLimits.fromSystemProperties(path);
+        rateLimits.put(path, limits);
+        registerRateLimitMetrics(limits);
+        HttpContext context = server.createContext(path, exchange -> {
+            setCorsHeaders(exchange);
+            if (RequestExecutor.isShedding()) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            if (exchange.getRequestMethod().equals("OPTIONS")) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            boolean forwarded = cluster != null && cluster.isInternal(exchange);
+            if (!forwarded) {
+                long wait = limits.admitClient(exchange.getRemoteAddress().getAddress().getHostAddress());
+                if (wait > 0) {
+                    sendTooManyRequests(exchange, wait);
+                    return;
+                }
+                if (routing != null && cluster != null && cluster.route(exchange, routing)) {
+                    return;
+                }
+            }
+            handler.handle(exchange);
+        });
+        context.getFilters().add(metrics.filter(path));
+    }
+
+    private static void registerRateLimitMetrics(RateLimits limits) {
+        String help = "Requests refused with 429, by context and limit.";
+        String[] scopes = { "global", "perIp", "perUser" };
+        RateLimiter[] limiters = { limits.global, limits.perIp, limits.perUser };
+        for (int i = 0; i < scopes.length; i++) {
+            RateLimiter limiter = limiters[i];
+            if (limiter != null) {
+                metrics.counter("gateway_rate_limited_total",
+                        "{context=\"" + limits.context + "\",scope=\"" + scopes[i] + "\"}", help,
+                        limiter::limitedCount);
+            }
+        }
+    }
+
+    // Gauges and counters read from the gateway's components whenever /api/metrics is scraped
+    private static GatewayMetrics createMetrics() {
+        GatewayMetrics metrics = new GatewayMetrics();
+        metrics.gauge("gateway_executor_in_flight", "", "Requests queued or running on worker threads.",
+                () -> executor == null ? 0 : executor.inFlight());
+        metrics.counter("gateway_executor_rejected_total", "", "Requests answered 503 because the executor was full.",
+                () -> executor == null ? 0 : executor.rejectedCount());
+        metrics.gauge("gateway_users", "", "Registered users.", () -> gateway.userCount());
+        metrics.counter("gateway_transactions_total", "", "Transactions recorded, including replayed ones.",
+                () -> gateway.transactionStore().size());
+        metrics.gauge("gateway_sessions", "", "Live sessions.", () -> sessions.size());
+        metrics.counter("gateway_session_lookups_total", "{result=\"hit\"}", "Session token lookups by result.",
+                () -> sessions.hits());
+        metrics.counter("gateway_session_lookups_total", "{result=\"miss\"}", "", () -> sessions.misses());
+        metrics.counter("gateway_session_removals_total", "{reason=\"evicted\"}",
+                "Sessions dropped before logout, by reason.", () -> sessions.evictions());
+        metrics.counter("gateway_session_removals_total", "{reason=\"expired\"}", "", () -> sessions.expirations());
+        metrics.gauge("gateway_idempotency_keys", "", "Idempotency keys remembered.", () -> idempotency.size());
+        metrics.counter("gateway_idempotency_replays_total", "", "Payments answered from a stored response.",
+                () -> idempotency.replays());
+        metrics.counter("gateway_idempotency_evictions_total", "", "Idempotency keys dropped before they expired.",
+                () -> idempotency.evictions());
+        metrics.counter("gateway_log_dropped_total", "", "Log events dropped because the log buffer was full.",
+                () -> GatewayLog.droppedCount());
+        metrics.gauge("gateway_catalog_version", "", "Version of the product catalog.",
+                () -> gateway.catalog().listing().version);
+        metrics.gauge("gateway_payments_pending", "", "Payments waiting for the payment processor.",
+                () -> payments.pendingCount());
+        metrics.counter("gateway_payments_refused_total", "",
+                "Payments answered 503 because too many were pending or the processor was unavailable.",
+                () -> payments.rejectedCount());
+        String attempts = "Payment processor calls by outcome.";
+        metrics.counter("gateway_processor_attempts_total", "{result=\"approved\"}", attempts,
+                () -> payments.approvedCount());
+        metrics.counter("gateway_processor_attempts_total", "{result=\"declined\"}", "",
+                () -> payments.declinedCount());
+        metrics.counter("gateway_processor_attempts_total", "{result=\"error\"}", "", () -> payments.errorCount());
+        metrics.counter("gateway_processor_attempts_total", "{result=\"timeout\"}", "",
+                () -> payments.timeoutCount());
+        metrics.counter("gateway_processor_retries_total", "", "Payment processor calls retried after a failure.",
+                () -> payments.retryCount());
+        metrics.gauge("gateway_processor_breaker_state", "",
+                "Processor circuit breaker: 0 closed, 1 open, 2 half open.", () -> payments.breaker().state().ordinal());
+        metrics.counter("gateway_processor_breaker_opened_total", "", "Times the processor circuit breaker opened.",
+                () -> payments.breaker().openedCount());
+        String declines = "Payments stopped by a velocity rule, by rule.";
+        metrics.counter("gateway_velocity_declines_total", "{rule=\"instrument_velocity\"}", declines,
+                () -> velocity.instrumentDeclineCount());
+        metrics.counter("gateway_velocity_declines_total", "{rule=\"amount_velocity\"}", "",
+                () -> velocity.amountDeclineCount());
+        metrics.counter("gateway_velocity_declines_total", "{rule=\"failed_verifications\"}", "",
+                () -> velocity.verificationDeclineCount());
+        metrics.gauge("gateway_velocity_keys", "", "Keys tracked by the velocity rules.", () -> velocity.trackedKeys());
+        metrics.summary("gateway_processor_duration_seconds", "Time for the payment processor to answer a call.",
+                payments.processorLatency());
+        if (site != null) {
+            metrics.gauge("gateway_static_files", "", "Web UI files served from memory.", () -> site.fileCount());
+            metrics.counter("gateway_static_reloads_total", "",
+                    "Times the web UI files were read again after a change.", () -> site.reloadCount());
+            metrics.counter("gateway_static_not_modified_total", "",
+                    "Web UI requests answered 304 because the client's copy was current.",
+                    () -> site.notModifiedCount());
+        }
+        if (cluster != null) {
+            metrics.gauge("gateway_cluster_members", "", "Gateway nodes in the cluster, this one included.",
+                    () -> cluster.ring().nodes().size());
+            metrics.counter("gateway_cluster_forwarded_total", "", "Requests sent on to the node owning their user.",
+                    () -> cluster.forwardedCount());
+            metrics.counter("gateway_cluster_forward_errors_total", "",
+                    "Requests answered 503 because the owning node could not be reached.",
+                    () -> cluster.forwardErrorCount());
+            String moved = "Users moved between nodes after the ring changed, by direction.";
+            metrics.counter("gateway_cluster_users_moved_total", "{direction=\"out\"}", moved,
+                    () -> cluster.usersSentCount());
+            metrics.counter("gateway_cluster_users_moved_total", "{direction=\"in\"}", "",
+                    () -> cluster.usersReceivedCount());
+            metrics.summary("gateway_cluster_forward_duration_seconds",
+                    "Time to forward a request to its owning node and relay the answer.", cluster.forwardLatency());
+        }
+        return metrics;
+    }
+
+    // Outcomes are counted as they are recorded, which is after the request that accepted the payment has ended
+    private static PaymentPipeline createPipeline() {
+        PaymentPipeline pipeline = PaymentPipeline.fromSystemProperties(gateway);
+        pipeline.onComplete(payment -> metrics.recordPayment(payment.paymentMethod, payment.transaction()));
+        return pipeline;
+    }
+
+    private static void setCorsHeaders(HttpExchange exchange) {
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization, Idempotency-Key");
+    }
+
+    // Returns the token from an "Authorization: Bearer <token>" header, or null
+    static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    // Resolves the session behind the request and applies the per-user rate limit; otherwise answers 401 or 429 and
+    // returns null
+    private static User authenticate(HttpExchange exchange) throws IOException {
+        User user = sessions.resolve(bearerToken(exchange));
+        if (user == null) {
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+            sendJsonResponse(exchange, 401, false, "Invalid or expired session", null);
+            return null;
+        }
+        long wait = rateLimits.get(exchange.getHttpContext().getPath()).admitUser(user.username);
+        if (wait > 0) {
+            sendTooManyRequests(exchange, wait);
+            return null;
+        }
+        return user;
+    }
+
+    // 429 with the whole seconds until the limiter will admit the caller again
+    private static void sendTooManyRequests(HttpExchange exchange, long waitNanos) throws IOException {
+        setRetryAfter(exchange, waitNanos);
+        sendJsonResponse(exchange, 429, false, "Too many requests", null);
+    }
+
+    private static void setRetryAfter(HttpExchange exchange, long waitNanos) {
+        exchange.getResponseHeaders().set("Retry-After",
+                Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+    }
+
+    private static void sendJsonResponse(HttpExchange exchange, int status, boolean success, String message,
+            Object data) throws IOException {
+        sendJsonResponse(exchange, status, success, message, data, null);
+    }
+
+    // Same, copying the response into capture when given. Returns the status for callers that record it
+    private static int sendJsonResponse(HttpExchange exchange, int status, boolean success, String message,
+            Object data, ByteArrayOutputStream capture) throws IOException {
+        try (JsonResponseWriter json = new JsonResponseWriter(exchange, status, capture)) {
+            json.beginObject();
+            json.name("success").value(success);
+
+            if (message != null) {
+                json.name("message").value(message);
+            }
+
+            if (data != null) {
+                if (data instanceof User) {
+                    json.name("user");
+                    writeUser(json, (User) data);
+                }
+            }
+
+            json.endObject();
+        }
+        return status;
+    }
+
+    static void writeUser(JsonResponseWriter json, User user) throws IOException {
+        synchronized (user) {
+            json.beginObject();
+            json.name("username").value(user.username);
+            json.name("paymentMethod").value(user.paymentMethod);
+
+            // Add payment details based on payment method
+            PaymentMethod method = PaymentMethod.forName(user.paymentMethod);
+            if (method != null) {
+                method.writeDetails(json, user);
+            }
+
+            // History is served page by page from /api/transactions
+            json.name("transactionCount").value(user.transactionCount);
+
+            json.endObject();
+        }
+    }
+
+    static void writeTransaction(JsonResponseWriter json, Transaction transaction) throws IOException {
+        json.beginObject();
+        json.name("id").value(transaction.id);
+        json.name("product").beginObject();
+        json.name("name").value(transaction.product.name);
+        json.name("price").value(TransactionStore.fromMinorUnits(transaction.amount));
+        json.endObject();
+        json.name("successful").value(transaction.successful);
+        json.name("timestamp").value(transaction.timestamp);
+        json.endObject();
+    }
+
+    static void writePayment(JsonResponseWriter json, Payment payment) throws IOException {
+        Payment.Status status = payment.status(); // Read first; the outcome fields are only set once it is final
+        json.beginObject();
+        json.name("id").value(Long.toString(payment.id)); // As a string: ids exceed JavaScript's exact integers
+        json.name("status").value(status.name());
+        if (status != Payment.Status.PENDING) {
+            json.name("reason").value(payment.reason());
+            json.name("transaction");
+            Transaction transaction = payment.transaction();
+            if (transaction != null) {
+                writeTransaction(json, transaction);
+            } else {
+                json.nullValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private static void handleRegister(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            RequestFields credentials = JsonRequestReader.read(exchange, CREDENTIAL_FIELDS);
+
+            User user = gateway.registerUser(credentials.get("username"), credentials.get("password"));
+
+            if (user != null) {
+                sendJsonResponse(exchange, 200, true, null, user);
+            } else {
+                sendJsonResponse(exchange, 400, false, "Username already exists", null);
+            }
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (Exception e) {
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    private static void handleLogin(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            RequestFields credentials = JsonRequestReader.read(exchange, CREDENTIAL_FIELDS);
+
+            // Limit guesses per account as well as per client before paying for the password hash
+            String username = credentials.get("username");
+            long wait = username != null ? rateLimits.get("/api/login").admitUser(username) : 0;
+            if (wait > 0) {
+                sendTooManyRequests(exchange, wait);
+                return;
+            }
+
+            User user = gateway.loginUser(username, credentials.get("password"));
+
+            if (user == null) {
+                sendJsonResponse(exchange, 401, false, "Invalid credentials", null);
+                return;
+            }
+
+            // Later requests present this token instead of the password
+            String token = sessions.issue(user);
+            try (JsonResponseWriter json = new JsonResponseWriter(exchange, 200)) {
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("user");
+                writeUser(json, user);
+                json.name("token").value(token);
+                json.name("expiresIn").value(sessions.ttlSeconds());
+                json.endObject();
+            }
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    private static void handleLogout(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        sessions.invalidate(bearerToken(exchange));
+        sendJsonResponse(exchange, 200, true, "Logged out", null);
+    }
+
+    private static void handleGetProducts(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            // The body is serialized once per catalog version; clients holding the current one get no body at all
+            ProductCatalog.Listing listing = gateway.catalog().listing();
+            exchange.getResponseHeaders().set("ETag", listing.etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), listing.etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            JsonResponseWriter.send(exchange, 200, listing.body);
+        } catch (Exception e) {
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    // The decoded value of a query parameter, or null when it is missing or empty
+    static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            if (key.equals(name)) {
+                String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                return value.isEmpty() ? null : value;
+            }
+        }
+        return null;
+    }
+
+    // If-None-Match holds "*" or a comma-separated list of tags, possibly weak
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // POST /api/admin/products adds a product; PUT and DELETE /api/admin/products/{id} change or retire one
+    private static boolean isAdmin(HttpExchange exchange) {
+        String token = exchange.getRequestHeaders().getFirst("X-Admin-Token");
+        return ADMIN_TOKEN != null && token != null && MessageDigest.isEqual(
+                ADMIN_TOKEN.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void handleAdminProducts(HttpExchange exchange) throws IOException {
+        try {
+            if (!isAdmin(exchange)) {
+                sendJsonResponse(exchange, 403, false, "Forbidden", null);
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String suffix = path.length() > ADMIN_PRODUCTS_PATH.length()
+                    ? path.substring(ADMIN_PRODUCTS_PATH.length() + 1) : null;
+            ProductCatalog catalog = gateway.catalog();
+            if (suffix == null) {
+                if (!method.equals("POST")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                RequestFields fields = JsonRequestReader.read(exchange, PRODUCT_FIELDS);
+                int id = catalog.add(productName(fields), productPrice(fields));
+                sendCatalogChange(exchange, 201, "Product added", id);
+                return;
+            }
+
+            int id = Integer.parseInt(suffix);
+            boolean found;
+            if (method.equals("PUT")) {
+                RequestFields fields = JsonRequestReader.read(exchange, PRODUCT_FIELDS);
+                found = catalog.update(id, productName(fields), productPrice(fields));
+            } else if (method.equals("DELETE")) {
+                found = catalog.remove(id);
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (found) {
+                sendCatalogChange(exchange, 200, method.equals("PUT") ? "Product updated" : "Product removed", id);
+            } else {
+                sendJsonResponse(exchange, 404, false, "Unknown product", null);
+            }
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (NumberFormatException e) {
+            sendJsonResponse(exchange, 400, false, "Invalid product id", null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    private static String productName(RequestFields fields) throws BadRequestException {
+        String name = fields.get("name");
+        if (name == null || name.isEmpty() || name.chars().anyMatch(c -> c < 0x20)) {
+            throw new BadRequestException(400, "Invalid product name");
+        }
+        return name;
+    }
+
+    private static double productPrice(RequestFields fields) throws BadRequestException {
+        try {
+            double price = Double.parseDouble(fields.get("price"));
+            if (price > 0 && !Double.isInfinite(price)) {
+                return price;
+            }
+        } catch (NullPointerException | NumberFormatException e) {
+            // Reported below
+        }
+        throw new BadRequestException(400, "Invalid product price");
+    }
+
+    private static void sendCatalogChange(HttpExchange exchange, int status, String message, int productId)
+            throws IOException {
+        try (JsonResponseWriter json = new JsonResponseWriter(exchange, status)) {
+            json.beginObject();
+            json.name("success").value(true);
+            json.name("message").value(message);
+            json.name("productId").value(productId);
+            json.name("version").value(gateway.catalog().listing().version);
+            json.endObject();
+        }
+    }
+
+    // POST /api/payment accepts a payment; GET /api/payment/{id} reports how it went
+    private static void handlePayment(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith(PAYMENT_PATH + "/")) {
+            handlePaymentStatus(exchange, path.substring(PAYMENT_PATH.length() + 1));
+            return;
+        }
+        if (!path.equals(PAYMENT_PATH)) {
+            sendJsonResponse(exchange, 404, false, "Not found", null);
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        User user = authenticate(exchange);
+        if (user == null) {
+            return;
+        }
+
+        String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        if (idempotencyKey == null) {
+            respondToPayment(exchange, user, null, null);
+            return;
+        }
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            sendJsonResponse(exchange, 400, false, "Invalid Idempotency-Key", null);
+            return;
+        }
+
+        // The key is bound to this exact request, so the body is read up front to fingerprint it and handed back to
+        // the exchange for respondToPayment
+        InputStream in = exchange.getRequestBody();
+        byte[] body = in.readNBytes(JsonRequestReader.MAX_BODY_BYTES + 1);
+        if (body.length > JsonRequestReader.MAX_BODY_BYTES) {
+            sendJsonResponse(exchange, 413, false, "Request body too large", null);
+            return;
+        }
+        exchange.setStreams(new ByteArrayInputStream(body), null);
+        byte[] fingerprint = IdempotencyCache.fingerprint(exchange.getRequestMethod(), path, body);
+
+        // Keys are scoped to the user, so two users can never see each other's stored responses
+        IdempotencyCache.Reservation reservation;
+        try {
+            reservation = idempotency.reserve(user.id + ":" + idempotencyKey, fingerprint);
+        } catch (IdempotencyCache.KeyReusedException e) {
+            sendJsonResponse(exchange, 422, false, e.getMessage(), null);
+            return;
+        } catch (TimeoutException e) {
+            sendJsonResponse(exchange, 409, false, "A request with this Idempotency-Key is still in progress", null);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendJsonResponse(exchange, 503, false, "Server is shutting down", null);
+            return;
+        }
+        IdempotencyCache.StoredResponse replay = reservation.replay();
+        if (replay != null) {
+            exchange.getResponseHeaders().add("Idempotent-Replayed", "true");
+            if (replay.location != null) {
+                exchange.getResponseHeaders().set("Location", replay.location);
+            }
+            JsonResponseWriter.send(exchange, replay.status, replay.body);
+            return;
+        }
+
+        // Keep the response for retries; server errors before the payment was accepted release the key so a retry
+        // runs the payment again. An accepted payment has completed the reservation already, and release() then
+        // does nothing
+        ByteArrayOutputStream capture = new ByteArrayOutputStream(512);
+        int status = 500;
+        try {
+            status = respondToPayment(exchange, user, reservation, capture);
+        } finally {
+            if (status < 500) {
+                reservation.complete(status, capture.toByteArray(), null);
+            } else {
+                reservation.release();
+            }
+        }
+    }
+
+    // Processes one payment and sends the response, copying refusals into capture when given. Once the payment is
+    // accepted the reservation, if any, is completed before anything is sent, so a retry can never charge again.
+    // Returns the status sent
+    private static int respondToPayment(HttpExchange exchange, User user, IdempotencyCache.Reservation reservation,
+            ByteArrayOutputStream capture) throws IOException {
+        try {
+            RequestFields paymentData = JsonRequestReader.read(exchange, PAYMENT_FIELDS);
+            GatewayLog.debug("payment.request", "user", user.username, "productId", paymentData.get("productId"));
+
+            // Check if payment method is set
+            if (user.paymentMethod == null || user.paymentMethod.isEmpty()) {
+                metrics.recordPayment(null, null);
+                return sendJsonResponse(exchange, 400, false, "Payment method not set", null, capture);
+            }
+
+            // The price comes from the catalog, never from the client
+            String productId = paymentData.get("productId");
+            if (productId == null) {
+                return sendJsonResponse(exchange, 400, false, "Product not specified", null, capture);
+            }
+            Product product = catalogProduct(productId);
+            if (product == null) {
+                return sendJsonResponse(exchange, 400, false, "Unknown product", null, capture);
+            }
+
+            // Velocity rules run before the processor sees anything
+            String paymentMethod = user.paymentMethod;
+            VelocityRules.Decline decline = velocity.checkUser(user);
+            if (decline == null && !gateway.canCharge(user)) {
+                velocity.recordFailedVerification(user);
+                metrics.recordPayment(paymentMethod, null);
+                return sendJsonResponse(exchange, 400, false, "Payment method details are not valid", null, capture);
+            }
+            long amount = TransactionStore.toMinorUnits(product.price);
+            if (decline == null) {
+                decline = velocity.check(user, paymentMethod, amount);
+            }
+            if (decline != null) {
+                return sendDecline(exchange, decline, capture);
+            }
+            Payment payment;
+            try {
+                payment = payments.accept(user, product, paymentMethod);
+            } catch (PaymentPipeline.RejectedException e) {
+                velocity.release(user, paymentMethod, amount);
+                setRetryAfter(exchange, e.retryAfterNanos);
+                return sendJsonResponse(exchange, 503, false, e.getMessage(), null, capture);
+            }
+
+            // The processor answers later; the client polls the Location for the outcome
+            ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+            try (JsonResponseWriter json = new JsonResponseWriter(body)) {
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("message").value("Payment accepted");
+                json.name("payment");
+                writePayment(json, payment);
+                json.endObject();
+            }
+            String location = PAYMENT_PATH + "/" + payment.id;
+            if (reservation != null) {
+                reservation.complete(202, body.toByteArray(), location);
+            }
+            exchange.getResponseHeaders().set("Location", location);
+            JsonResponseWriter.send(exchange, 202, body.toByteArray());
+            return 202;
+        } catch (BadRequestException e) {
+            return sendJsonResponse(exchange, e.status, false, e.getMessage(), null, capture);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            return sendJsonResponse(exchange, 500, false, "Server error: " + e.getMessage(), null, capture);
+        }
+    }
+
+    private static int sendDecline(HttpExchange exchange, VelocityRules.Decline decline,
+            ByteArrayOutputStream capture) throws IOException {
+        try (JsonResponseWriter json = new JsonResponseWriter(exchange, 402, capture)) {
+            json.beginObject();
+            json.name("success").value(false);
+            json.name("message").value(decline.message);
+            json.name("reason").value(decline.rule);
+            json.endObject();
+        }
+        return 402;
+    }
+
+    private static void handlePaymentStatus(HttpExchange exchange, String id) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        User user = authenticate(exchange);
+        if (user == null) {
+            return;
+        }
+
+        // Another user's payment is reported as unknown, so ids reveal nothing
+        Payment payment;
+        try {
+            payment = payments.find(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            payment = null;
+        }
+        if (payment == null || payment.user != user) {
+            sendJsonResponse(exchange, 404, false, "Unknown payment", null);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        try (JsonResponseWriter json = new JsonResponseWriter(exchange, 200)) {
+            json.beginObject();
+            json.name("success").value(true);
+            json.name("payment");
+            writePayment(json, payment);
+            json.name("user");
+            writeUser(json, user);
+            json.endObject();
+        }
+    }
+
+    // Batch items parsed together and validated as one task
+    private static final class BatchChunk {
+        final RequestFields[] items = new RequestFields[BATCH_CHUNK_SIZE];
+        final Product[] products = new Product[BATCH_CHUNK_SIZE];
+        final String[] errors = new String[BATCH_CHUNK_SIZE];
+        int count;
+    }
+
+    private static void handleBatchPayment(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            User user = authenticate(exchange);
+            if (user == null) {
+                return;
+            }
+
+            // Same up-front checks as a single payment, made once for the whole batch and counted once in the
+            // metrics, since the items are never read; accepted items are counted as their outcomes are recorded
+            if (user.paymentMethod == null || user.paymentMethod.isEmpty()) {
+                metrics.recordPayment(null, null);
+                sendJsonResponse(exchange, 400, false, "Payment method not set", null);
+                return;
+            }
+            VelocityRules.Decline blocked = velocity.checkUser(user);
+            if (blocked != null) {
+                sendDecline(exchange, blocked, null);
+                return;
+            }
+            if (!gateway.canCharge(user)) {
+                velocity.recordFailedVerification(user);
+                metrics.recordPayment(user.paymentMethod, null);
+                sendJsonResponse(exchange, 400, false, "Payment method details are not valid", null);
+                return;
+            }
+
+            // The body is a JSON array of { productId } items. Each full chunk is validated on the
+            // common pool while the next one is still being read off the socket
+            JsonRequestReader reader = JsonRequestReader.open(exchange, MAX_BATCH_BYTES);
+            List<BatchChunk> chunks = new ArrayList<>();
+            List<CompletableFuture<Void>> validations = new ArrayList<>();
+            BatchChunk chunk = new BatchChunk();
+            int count = 0;
+            reader.beginArray();
+            while (reader.nextElement()) {
+                if (count == MAX_BATCH_ITEMS) {
+                    throw new BadRequestException(413, "Batch is limited to " + MAX_BATCH_ITEMS + " items");
+                }
+                chunk.items[chunk.count++] = reader.readObject(BATCH_ITEM_FIELDS);
+                count++;
+                if (chunk.count == BATCH_CHUNK_SIZE) {
+                    BatchChunk full = chunk;
+                    chunks.add(full);
+                    validations.add(CompletableFuture.runAsync(() -> validateBatchItems(full)));
+                    chunk = new BatchChunk();
+                }
+            }
+            if (chunk.count > 0) {
+                chunks.add(chunk);
+                validateBatchItems(chunk);
+            }
+            CompletableFuture.allOf(validations.toArray(new CompletableFuture<?>[0])).join();
+
+            Product[] products = new Product[count];
+            for (int i = 0; i < chunks.size(); i++) {
+                System.arraycopy(chunks.get(i).products, 0, products, i * BATCH_CHUNK_SIZE, chunks.get(i).count);
+            }
+            GatewayLog.debug("payment.batch", "user", user.username, "items", count);
+
+            // The batch is one attempt with the stored instrument; its items count against the batch amount limit
+            String paymentMethod = user.paymentMethod;
+            VelocityRules.Decline batchDecline = velocity.checkBatch(user, paymentMethod);
+            if (batchDecline != null) {
+                sendDecline(exchange, batchDecline, null);
+                return;
+            }
+
+            // Each item is authorized on its own; items the pipeline has no room for are refused individually
+            Payment[] accepted = new Payment[count];
+            VelocityRules.Decline[] declines = new VelocityRules.Decline[count];
+            int acceptedCount = 0;
+            int refusedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (products[i] == null) {
+                    continue;
+                }
+                long amount = TransactionStore.toMinorUnits(products[i].price);
+                declines[i] = velocity.checkBatchItem(user, amount);
+                if (declines[i] != null) {
+                    continue;
+                }
+                try {
+                    accepted[i] = payments.accept(user, products[i], paymentMethod);
+                    acceptedCount++;
+                } catch (PaymentPipeline.RejectedException e) {
+                    velocity.releaseBatchItem(user, amount);
+                    refusedCount++;
+                    chunks.get(i / BATCH_CHUNK_SIZE).errors[i % BATCH_CHUNK_SIZE] = e.getMessage();
+                }
+            }
+            if (acceptedCount == 0 && refusedCount > 0) {
+                velocity.releaseBatch(user, paymentMethod); // Nothing was charged; a retry is not a new attempt
+            }
+
+            // Results come back in request order with the messages a single payment would give; large batches
+            // leave the writer's buffer and are sent as a chunked stream
+            try (JsonResponseWriter json = new JsonResponseWriter(exchange, 202)) {
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("accepted").value(acceptedCount);
+                json.name("rejected").value(count - acceptedCount);
+                json.name("results").beginArray();
+                for (int i = 0; i < count; i++) {
+                    Payment payment = accepted[i];
+                    json.beginObject();
+                    json.name("success").value(payment != null);
+                    json.name("message").value(payment != null ? "Payment accepted"
+                            : declines[i] != null ? declines[i].message
+                            : chunks.get(i / BATCH_CHUNK_SIZE).errors[i % BATCH_CHUNK_SIZE]);
+                    if (declines[i] != null) {
+                        json.name("reason").value(declines[i].rule);
+                    }
+                    json.name("payment");
+                    if (payment != null) {
+                        writePayment(json, payment);
+                    } else {
+                        json.nullValue();
+                    }
+                    json.endObject();
+                }
+                json.endArray();
+                json.name("user");
+                writeUser(json, user);
+                json.endObject();
+            }
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error: " + e.getMessage(), null);
+        }
+    }
+
+    private static void validateBatchItems(BatchChunk chunk) {
+        for (int i = 0; i < chunk.count; i++) {
+            RequestFields item = chunk.items[i];
+            String productId = item.get("productId");
+            chunk.items[i] = null; // Only the outcome is needed from here on
+            if (productId == null) {
+                chunk.errors[i] = "Product not specified";
+                continue;
+            }
+            chunk.products[i] = catalogProduct(productId);
+            if (chunk.products[i] == null) {
+                chunk.errors[i] = "Unknown product";
+            }
+        }
+    }
+
+    // Looks a productId field up in the catalog; null when it is malformed or not on offer
+    private static Product catalogProduct(String productId) {
+        try {
+            return gateway.findProduct(Integer.parseInt(productId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Prometheus scrape target; see GatewayMetrics for what is recorded
+    private static void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Revenue and volume are business data, so stats share the admin token
+    private static void handleStats(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        if (!isAdmin(exchange)) {
+            sendJsonResponse(exchange, 403, false, "Forbidden", null);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        try (JsonResponseWriter json = new JsonResponseWriter(exchange, 200)) {
+            json.beginObject();
+            json.name("success").value(true);
+            json.name("stats");
+            gateway.stats().write(json, gateway);
+            json.endObject();
+        }
+    }
+
+    // POST /api/admin/settlement writes a settlement file of the transactions timestamped in [from, to), epoch
+    // milliseconds that default to all of them, as CSV unless format is "binary", and answers once it is on disk
+    private static void handleSettlement(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        if (!isAdmin(exchange)) {
+            sendJsonResponse(exchange, 403, false, "Forbidden", null);
+            return;
+        }
+
+        try {
+            RequestFields request = JsonRequestReader.read(exchange, SETTLEMENT_FIELDS);
+            String format = request.get("format");
+            String from = request.get("from");
+            String to = request.get("to");
+            SettlementExport.Format exportFormat;
+            if (format == null || format.equalsIgnoreCase("csv")) {
+                exportFormat = SettlementExport.Format.CSV;
+            } else if (format.equalsIgnoreCase("binary")) {
+                exportFormat = SettlementExport.Format.BINARY;
+            } else {
+                sendJsonResponse(exchange, 400, false, "Format must be csv or binary", null);
+                return;
+            }
+
+            long start = System.nanoTime();
+            SettlementExport.Result result = settlements.export(exportFormat,
+                    from != null ? Long.parseLong(from) : Long.MIN_VALUE,
+                    to != null ? Long.parseLong(to) : Long.MAX_VALUE);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            GatewayLog.info("settlement.exported", "file", result.file, "transactions", result.transactions,
+                    "bytes", result.bytes, "ms", millis);
+
+            try (JsonResponseWriter json = new JsonResponseWriter(exchange, 200)) {
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("file").value(result.file.toString());
+                json.name("rows").value(result.rows);
+                json.name("transactions").value(result.transactions);
+                json.name("failed").value(result.failed);
+                json.name("amount").value(TransactionStore.fromMinorUnits(result.amount));
+                json.name("bytes").value(result.bytes);
+                json.name("ms").value(millis);
+                json.endObject();
+            }
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (NumberFormatException e) {
+            sendJsonResponse(exchange, 400, false, "Invalid from or to", null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    // GET /api/transactions?cursor=&limit= pages the user's history, newest first
+    private static void handleGetTransactions(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            User user = authenticate(exchange);
+            if (user == null) {
+                return;
+            }
+
+            // The cursor is the id of the oldest transaction on the previous page; omit it for the newest page
+            String cursor = queryParameter(exchange, "cursor");
+            String limitValue = queryParameter(exchange, "limit");
+            int after = cursor != null ? Integer.parseInt(cursor) : TransactionStore.NONE;
+            int limit = limitValue != null ? Integer.parseInt(limitValue) : DEFAULT_PAGE_SIZE;
+            if (limit < 1) {
+                sendJsonResponse(exchange, 400, false, "Invalid cursor or limit", null);
+                return;
+            }
+            List<Transaction> page = gateway.getTransactions(user, after, Math.min(limit, MAX_PAGE_SIZE));
+
+            try (JsonResponseWriter json = new JsonResponseWriter(exchange, 200)) {
+                json.beginObject();
+                json.name("success").value(true);
+                json.name("transactions").beginArray();
+                for (Transaction transaction : page) {
+                    writeTransaction(json, transaction);
+                }
+                json.endArray();
+                json.name("nextCursor");
+                Transaction oldest = page.isEmpty() ? null : page.get(page.size() - 1);
+                if (oldest != null && gateway.hasOlderTransactions(oldest)) {
+                    json.value(oldest.id);
+                } else {
+                    json.nullValue();
+                }
+                json.endObject();
+            }
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException and malformed %-escapes
+            sendJsonResponse(exchange, 400, false, "Invalid cursor or limit", null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error", null);
+        }
+    }
+
+    private static void handleUpdatePaymentMethod(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        try {
+            User user = authenticate(exchange);
+            if (user == null) {
+                return;
+            }
+
+            RequestFields paymentData = JsonRequestReader.read(exchange, PAYMENT_METHOD_FIELDS);
+            GatewayLog.debug("payment-method.update", "user", user.username, "method", paymentData.get("paymentMethod"),
+                    "cardNumber", paymentData.get("cardNumber"), "bankAccount", paymentData.get("bankAccount"));
+
+            // Parse payment method and details from request
+            String paymentMethod = paymentData.get("paymentMethod");
+            Map<String, String> paymentDetails = new HashMap<>();
+            paymentDetails.put("cardNumber", paymentData.get("cardNumber"));
+            paymentDetails.put("cardExpiry", paymentData.get("cardExpiry"));
+            paymentDetails.put("cardCVV", paymentData.get("cardCVV"));
+            paymentDetails.put("bankAccount", paymentData.get("bankAccount"));
+            paymentDetails.put("upiId", paymentData.get("upiId"));
+
+            gateway.updatePaymentMethod(user, paymentMethod, paymentDetails);
+
+            sendJsonResponse(exchange, 200, true, "Payment method updated successfully", user);
+        } catch (BadRequestException e) {
+            sendJsonResponse(exchange, e.status, false, e.getMessage(), null);
+        } catch (PaymentGateway.UserMovedException e) {
+            // Moved after authenticate(); a retry is forwarded to the new owner, as for a payment refused mid-move
+            setRetryAfter(exchange, TimeUnit.SECONDS.toNanos(1));
+            sendJsonResponse(exchange, 503, false, e.getMessage(), null);
+        } catch (Exception e) {
+            GatewayLog.error("request.failed", e, "path", exchange.getRequestURI().getPath());
+            sendJsonResponse(exchange, 500, false, "Server error: " + e.getMessage(), null);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package gateway;
+
+/**
+ * A payment accepted by the PaymentPipeline, from the moment /api/payment answers until its outcome is polled. The
+ * outcome fields are written once by the pipeline and published by the volatile status, so a reader that sees a
+ * final status also sees the transaction and reason that go with it.
+ */
+final class Payment {
+    enum Status {
+        PENDING, // Waiting for the processor
+        AUTHORIZED, // Approved and recorded as a successful transaction
+        DECLINED, // Refused by the processor and recorded as a failed transaction
+        FAILED // No decision: the processor timed out, errored or was unavailable; retrying may succeed
+    }
+
+    final long id;
+    final User user;
+    final Product product;
+    final String paymentMethod; // As set when the payment was accepted
+    int attempts; // Only touched by the attempt in flight, which happens-after the one before it
+
+    private volatile Status status = Status.PENDING;
+    private String reason;
+    private Transaction transaction;
+    private long completedAt; // System.nanoTime()
+
+    Payment(long id, User user, Product product, String paymentMethod) {
+        this.id = id;
+        this.user = user;
+        this.product = product;
+        this.paymentMethod = paymentMethod;
+    }
+
+    Status status() {
+        return status;
+    }
+
+    /** Why the payment was declined or failed; null while pending or once authorized. */
+    String reason() {
+        return status != Status.PENDING ? reason : null;
+    }
+
+    /** The recorded transaction, or null while pending or when nothing could be recorded. */
+    Transaction transaction() {
+        return status != Status.PENDING ? transaction : null;
+    }
+
+    long completedAt() {
+        return completedAt;
+    }
+
+    void complete(Status outcome, String reason, Transaction transaction) {
+        this.reason = reason;
+        this.transaction = transaction;
+        this.completedAt = System.nanoTime();
+        this.status = outcome;
+    }
+}
@@ -0,0 +1,188 @@
+package gateway;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+
+/**
+ * Single-pass checks for stored payment details.
+ *
+ * Each check walks the characters of its input once, without building intermediate Strings or regular expressions,
+ * so validating a payment allocates nothing. Whitespace is ignored inside card and account numbers, as users paste
+ * them grouped.
+ */
+final class PaymentDetailValidator {
+    // Card ranges by BIN (the first six digits): low BIN, high BIN, shortest and longest number, CVV length.
+    // The first matching row wins
+    private static final int[][] CARD_RANGES = {
+            { 400000, 499999, 13, 19, 3 }, // Visa
+            { 510000, 559999, 16, 16, 3 }, // Mastercard
+            { 222100, 272099, 16, 16, 3 }, // Mastercard 2-series
+            { 340000, 349999, 15, 15, 4 }, // American Express
+            { 370000, 379999, 15, 15, 4 }, // American Express
+            { 601100, 601199, 16, 19, 3 }, // Discover
+            { 644000, 659999, 16, 19, 3 }, // Discover
+            { 352800, 358999, 16, 19, 3 }, // JCB
+            { 508500, 508999, 16, 16, 3 }, // RuPay
+            { 606985, 607984, 16, 16, 3 }, // RuPay
+            { 608001, 608500, 16, 16, 3 }, // RuPay
+    };
+    private static final int NO_RANGE = -1;
+
+    // Months since year 0 of the current UTC month, and when it ends; written in that order, read in reverse
+    private static volatile int currentMonth;
+    private static volatile long monthEndsAt;
+
+    private PaymentDetailValidator() {
+    }
+
+    /** True for a complete card: a Luhn-valid number in a known BIN range, a current expiry and a matching CVV. */
+    static boolean isValidCard(String number, String expiry, String cvv) {
+        int range = cardRange(number);
+        return range != NO_RANGE && isCurrentExpiry(expiry) && isDigits(cvv, CARD_RANGES[range][4]);
+    }
+
+    /**
+     * Returns the CARD_RANGES row of a card number, or NO_RANGE unless the number passes the Luhn check and has a
+     * length issued in its range. The Luhn sum is kept for both parities while scanning left to right, since which
+     * digits get doubled depends on the length, known only at the end.
+     */
+    static int cardRange(String number) {
+        if (number == null) {
+            return NO_RANGE;
+        }
+        int digits = 0;
+        int bin = 0;
+        int sumIfEven = 0; // Luhn sum if the number turns out to have an even length
+        int sumIfOdd = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                int doubled = digit < 5 ? digit * 2 : digit * 2 - 9;
+                if ((digits & 1) == 0) {
+                    sumIfEven += doubled;
+                    sumIfOdd += digit;
+                } else {
+                    sumIfEven += digit;
+                    sumIfOdd += doubled;
+                }
+                if (digits < 6) {
+                    bin = bin * 10 + digit;
+                }
+                digits++;
+            } else if (!isSpace(c)) {
+                return NO_RANGE;
+            }
+        }
+        if (digits < 12 || digits > 19 || ((digits & 1) == 0 ? sumIfEven : sumIfOdd) % 10 != 0) {
+            return NO_RANGE;
+        }
+        for (int range = 0; range < CARD_RANGES.length; range++) {
+            int[] row = CARD_RANGES[range];
+            if (bin >= row[0] && bin <= row[1] && digits >= row[2] && digits <= row[3]) {
+                return range;
+            }
+        }
+        return NO_RANGE;
+    }
+
+    /** True for an "MM/YY" expiry no earlier than the current month; a card is good through its expiry month. */
+    static boolean isCurrentExpiry(String expiry) {
+        if (expiry == null || expiry.length() != 5 || expiry.charAt(2) != '/') {
+            return false;
+        }
+        int month = twoDigits(expiry, 0);
+        int year = twoDigits(expiry, 3);
+        if (month < 1 || month > 12 || year < 0) {
+            return false;
+        }
+        return (2000 + year) * 12 + month - 1 >= currentMonth();
+    }
+
+    /** True for 8 to 12 digits, ignoring whitespace. */
+    static boolean isValidBankAccount(String accountNumber) {
+        if (accountNumber == null) {
+            return false;
+        }
+        int digits = 0;
+        for (int i = 0; i < accountNumber.length(); i++) {
+            char c = accountNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (!isSpace(c)) {
+                return false;
+            }
+        }
+        return digits >= 8 && digits <= 12;
+    }
+
+    /** True for "handle@provider": letters, digits and dots before the @, letters and digits after it. */
+    static boolean isValidUpiId(String upiId) {
+        if (upiId == null) {
+            return false;
+        }
+        int at = -1;
+        for (int i = 0; i < upiId.length(); i++) {
+            char c = upiId.charAt(i);
+            boolean alphanumeric = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (c == '@' && at < 0) {
+                at = i;
+            } else if (!alphanumeric && (c != '.' || at >= 0)) {
+                return false;
+            }
+        }
+        return at > 0 && at < upiId.length() - 1;
+    }
+
+    /** True when the value is exactly count ASCII digits. */
+    static boolean isDigits(String value, int count) {
+        if (value == null || value.length() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the last four characters of a number, ignoring whitespace, or null when it has fewer
+    static String lastFourDigits(String number) {
+        char[] last = new char[4];
+        int found = 0;
+        for (int i = number.length() - 1; i >= 0 && found < 4; i--) {
+            char c = number.charAt(i);
+            if (!isSpace(c)) {
+                last[3 - found++] = c;
+            }
+        }
+        return found == 4 ? new String(last) : null;
+    }
+
+    // The characters \s matches
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int twoDigits(String value, int offset) {
+        char tens = value.charAt(offset);
+        char ones = value.charAt(offset + 1);
+        if (tens < '0' || tens > '9' || ones < '0' || ones > '9') {
+            return -1;
+        }
+        return (tens - '0') * 10 + ones - '0';
+    }
+
+    // Only recomputed when a month boundary passes, so the check stays allocation-free
+    private static int currentMonth() {
+        long now = System.currentTimeMillis();
+        if (now >= monthEndsAt) {
+            YearMonth month = YearMonth.now(ZoneOffset.UTC);
+            currentMonth = month.getYear() * 12 + month.getMonthValue() - 1;
+            monthEndsAt = month.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        return currentMonth;
+    }
+}
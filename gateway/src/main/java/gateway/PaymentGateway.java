@@ -0,0 +1,415 @@
+package gateway;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PaymentGateway {
+    /** A change to a user that has already been copied to the cluster node that now owns it. */
+    static final class UserMovedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UserMovedException() {
+            super("Account has moved to another node");
+        }
+    }
+
+    // Keyed by username; putIfAbsent makes registration atomic under concurrent requests
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    private final ProductTable productTable = new ProductTable();
+    private final ProductCatalog catalog = new ProductCatalog(productTable);
+    private final TransactionStore transactionStore;
+    private final PaymentStats stats = new PaymentStats();
+    // Set once at startup, after the journal has been replayed; null when journaling is off
+    private volatile PaymentJournal journal;
+
+    public PaymentGateway() {
+        this(TransactionStore.fromSystemProperties());
+    }
+
+    PaymentGateway(TransactionStore transactionStore) {
+        this.transactionStore = transactionStore;
+        // Default products, replaced by the catalog file when one is configured
+        try {
+            catalog.add("Laptop", 1000.0);
+            catalog.add("Smartphone", 500.0);
+            catalog.add("Subscription", 100.0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // No catalog file is attached yet, so nothing is written
+        }
+    }
+
+    void attachJournal(PaymentJournal journal) {
+        this.journal = journal;
+    }
+
+    public User registerUser(String username, String password) {
+        if (username == null || password == null || users.containsKey(username)) {
+            return null; // Skip the slow hash when the name is obviously taken
+        }
+        return addUser(username, PasswordHasher.hash(password));
+    }
+
+    private User addUser(String username, String passwordHash) {
+        User newUser = new User(username, passwordHash);
+        newUser.id = nextUserId.getAndIncrement();
+        long lsn;
+        // Journal while holding the new user's monitor so none of its later records can be logged ahead of it
+        synchronized (newUser) {
+            if (users.putIfAbsent(username, newUser) != null) {
+                return null; // Username already taken
+            }
+            if (journal != null) {
+                lsn = newUser.lastLsn = journal.logRegistration(newUser);
+            } else {
+                lsn = 0;
+            }
+        }
+        awaitDurable(lsn);
+        return newUser;
+    }
+
+    User findUser(String username) {
+        return username != null ? users.get(username) : null;
+    }
+
+    int userCount() {
+        return users.size();
+    }
+
+    public User loginUser(String username, String password) {
+        if (username == null) {
+            return null;
+        }
+        User user = users.get(username);
+        if (user != null && PasswordHasher.verify(password, user.passwordHash)) {
+            return user;
+        }
+        return null;
+    }
+
+    public List<Product> getProducts() {
+        return catalog.products();
+    }
+
+    ProductCatalog catalog() {
+        return catalog;
+    }
+
+    /** Returns the product offered under this catalog id, or null. */
+    public Product findProduct(int productId) {
+        return catalog.get(productId);
+    }
+
+    /** Returns the shared Product for this name and price, or null if the name is missing. */
+    public Product resolveProduct(String name, double price) {
+        return name != null ? productTable.intern(name, price) : null;
+    }
+
+    Product getProduct(int id) {
+        return productTable.get(id);
+    }
+
+    int productCount() {
+        return productTable.size();
+    }
+
+    TransactionStore transactionStore() {
+        return transactionStore;
+    }
+
+    PaymentStats stats() {
+        return stats;
+    }
+
+    // User fields, including the head of the user's transaction history, are guarded by the User's monitor
+    public void updatePaymentMethod(User user, String paymentMethod, Map<String, String> paymentDetails) {
+        long lsn;
+        synchronized (user) {
+            if (user.moved) {
+                throw new UserMovedException();
+            }
+            user.paymentMethod = paymentMethod;
+
+            // Update payment details based on the payment method
+            PaymentMethod method = PaymentMethod.forName(paymentMethod);
+            if (method != null) {
+                method.apply(user, paymentDetails);
+            }
+            if (journal != null) {
+                lsn = user.lastLsn = journal.logPaymentMethod(user);
+            } else {
+                lsn = 0;
+            }
+        }
+        awaitDurable(lsn);
+    }
+
+    /** True when the user's stored payment method is set, known and passes its own checks. */
+    boolean canCharge(User user) {
+        synchronized (user) {
+            return hasValidPaymentMethod(user);
+        }
+    }
+
+    /**
+     * Records the payment processor's decision as the user's newest transaction, successful when the payment was
+     * authorized. paymentMethod is the method the payment was accepted with, which the user may have changed
+     * since. Returns once the transaction is as durable as the journal promises.
+     */
+    public Transaction recordPayment(User user, Product product, String paymentMethod, boolean authorized) {
+        Transaction transaction;
+        long lsn = 0;
+        synchronized (user) {
+            transaction = recordTransaction(user, product, paymentMethod, authorized, System.currentTimeMillis());
+            if (journal != null) {
+                lsn = user.lastLsn = journal.logPayment(user, transaction, paymentMethod);
+            }
+        }
+        // Wait for the disk outside the lock so concurrent payments can share one fsync
+        awaitDurable(lsn);
+        return transaction;
+    }
+
+    // Journal replay: each record is applied once, unless a loaded snapshot already contains it
+
+    void replayRegistration(long lsn, String username, String passwordHash) {
+        User user = addUser(username, passwordHash);
+        if (user != null) {
+            user.lastLsn = lsn;
+        }
+    }
+
+    void replayPaymentMethod(long lsn, String username, String paymentMethod, Map<String, String> paymentDetails) {
+        User user = findUser(username);
+        if (user != null && paymentMethod != null && lsn > user.lastLsn) {
+            updatePaymentMethod(user, paymentMethod, paymentDetails);
+            user.lastLsn = lsn;
+        }
+    }
+
+    void replayPayment(long lsn, String username, String productName, double price, boolean successful,
+            long timestamp, String paymentMethod) {
+        User user = findUser(username);
+        if (user != null && lsn > user.lastLsn) {
+            restorePayment(user, resolveProduct(productName, price), paymentMethod, successful, timestamp);
+            user.lastLsn = lsn;
+        }
+    }
+
+    /** Re-applies a recorded payment, charged to paymentMethod, without validating it again. */
+    void restorePayment(User user, Product product, String paymentMethod, boolean successful, long timestamp) {
+        synchronized (user) {
+            recordTransaction(user, product, paymentMethod, successful, timestamp);
+        }
+    }
+
+    void replayRemoval(long lsn, String username) {
+        User user = findUser(username);
+        if (user != null && lsn > user.lastLsn) {
+            synchronized (user) {
+                users.remove(username, user);
+                forgetStats(user);
+            }
+        }
+    }
+
+    // Moving users between cluster nodes
+
+    /**
+     * Writes the user, its payment details and its whole history, oldest transaction first, for the cluster node
+     * that now owns it, and marks it moved so nothing changes it here any more. Writes nothing and returns false
+     * while the user has payments pending, whose outcomes still have to be recorded here.
+     */
+    boolean writeMovingUser(User user, DataOutputStream out) throws IOException {
+        synchronized (user) {
+            if (user.moved || user.pendingPayments > 0) {
+                return false;
+            }
+            out.writeUTF(user.username);
+            out.writeUTF(user.passwordHash);
+            String[] fields = { user.paymentMethod, user.cardNumber, user.cardExpiry, user.cardCVV, user.bankAccount,
+                    user.upiId };
+            for (String field : fields) {
+                out.writeBoolean(field != null);
+                if (field != null) {
+                    out.writeUTF(field);
+                }
+            }
+            int[] rows = new int[user.transactionCount];
+            int index = user.lastTransaction;
+            for (int i = rows.length - 1; i >= 0; i--) {
+                rows[i] = index;
+                index = transactionStore.previous(index);
+            }
+            out.writeInt(rows.length);
+            for (int row : rows) {
+                Product product = productTable.get(transactionStore.productId(row));
+                String paymentMethod = transactionStore.methodName(transactionStore.method(row));
+                out.writeUTF(product.name);
+                out.writeDouble(product.price);
+                out.writeBoolean(paymentMethod != null);
+                if (paymentMethod != null) {
+                    out.writeUTF(paymentMethod);
+                }
+                out.writeBoolean(transactionStore.status(row) == TransactionStore.SUCCEEDED);
+                out.writeLong(transactionStore.timestamp(row));
+            }
+            user.moved = true;
+            return true;
+        }
+    }
+
+    /** Puts a user back in service here after the node it was moving to did not take it. */
+    void cancelMove(User user) {
+        synchronized (user) {
+            user.moved = false;
+        }
+    }
+
+    /**
+     * Drops a moved user once its new node holds it, journaled so a restart does not bring it back, and takes its
+     * history out of the stats, which the new node counts from now on. Returns the lsn to pass to awaitDurable, so
+     * a batch of removals can share one wait.
+     */
+    long removeMovedUser(User user) {
+        synchronized (user) {
+            users.remove(user.username, user);
+            forgetStats(user);
+            return journal != null ? user.lastLsn = journal.logRemoval(user) : 0;
+        }
+    }
+
+    // The rows stay in the TransactionStore; settlement files leave them out once the user is gone
+    private void forgetStats(User user) {
+        int row = user.lastTransaction;
+        for (int i = 0; i < user.transactionCount; i++) {
+            stats.remove(productTable.get(transactionStore.productId(row)),
+                    transactionStore.methodName(transactionStore.method(row)), transactionStore.amount(row),
+                    transactionStore.status(row) == TransactionStore.SUCCEEDED, transactionStore.timestamp(row));
+            row = transactionStore.previous(row);
+        }
+    }
+
+    /**
+     * Reads a user written by writeMovingUser on another node and adds it, its details and its history, journaled as
+     * if they had happened here. Returns null, after reading it all the same, when the username is already taken.
+     * A move that is retried after its answer was lost finds the same account, with the same salted password hash;
+     * any other account with the name is a different user, and its name is added to refused so the sender keeps it.
+     * Does not wait for the journal; the user's lastLsn is the lsn to wait for.
+     */
+    User readMovedUser(DataInputStream in, Collection<String> refused) throws IOException {
+        User user = new User(in.readUTF(), in.readUTF());
+        String[] fields = new String[6];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        user.paymentMethod = fields[0];
+        user.cardNumber = fields[1];
+        user.cardExpiry = fields[2];
+        user.cardCVV = fields[3];
+        user.bankAccount = fields[4];
+        user.upiId = fields[5];
+        user.id = nextUserId.getAndIncrement();
+        int transactions = in.readInt();
+        synchronized (user) {
+            User existing = users.putIfAbsent(user.username, user);
+            boolean added = existing == null;
+            if (!added && !existing.passwordHash.equals(user.passwordHash)) {
+                refused.add(user.username);
+            }
+            if (added && journal != null) {
+                user.lastLsn = journal.logRegistration(user);
+                if (user.paymentMethod != null) {
+                    user.lastLsn = journal.logPaymentMethod(user);
+                }
+            }
+            for (int i = 0; i < transactions; i++) {
+                Product product = resolveProduct(in.readUTF(), in.readDouble());
+                String paymentMethod = in.readBoolean() ? in.readUTF() : null;
+                boolean successful = in.readBoolean();
+                long timestamp = in.readLong();
+                if (added) {
+                    Transaction transaction = recordTransaction(user, product, paymentMethod, successful, timestamp);
+                    if (journal != null) {
+                        user.lastLsn = journal.logPayment(user, transaction, paymentMethod);
+                    }
+                }
+            }
+            return added ? user : null;
+        }
+    }
+
+    // Snapshot support
+
+    Collection<User> users() {
+        return users.values();
+    }
+
+    void restoreUser(User user) {
+        users.put(user.username, user);
+        nextUserId.accumulateAndGet(user.id + 1, Math::max);
+    }
+
+    /** Waits until the journal record with this lsn is durable; 0 returns at once. */
+    void awaitDurable(long lsn) {
+        if (lsn != 0) {
+            journal.awaitDurable(lsn);
+        }
+    }
+
+    private boolean hasValidPaymentMethod(User user) {
+        // Unset and unknown methods never pass
+        PaymentMethod method = PaymentMethod.forName(user.paymentMethod);
+        return method != null && method.isValid(user);
+    }
+
+    private Transaction recordTransaction(User user, Product product, String paymentMethod, boolean successful,
+            long timestamp) {
+        long amount = TransactionStore.toMinorUnits(product.price);
+        int index = transactionStore.append(user.id, user.lastTransaction, product.id,
+                transactionStore.methodId(paymentMethod), amount,
+                successful ? TransactionStore.SUCCEEDED : TransactionStore.FAILED, timestamp);
+        user.lastTransaction = index;
+        user.transactionCount++;
+        stats.record(product, paymentMethod, amount, successful, timestamp);
+        return new Transaction(index, user.id, product, amount, successful, timestamp);
+    }
+
+    /**
+     * Returns up to limit of the user's transactions older than the cursor transaction, newest first; a cursor of
+     * TransactionStore.NONE starts from the newest. Each page follows the user's chain through the TransactionStore,
+     * so it costs O(limit) however long the history is.
+     */
+    public List<Transaction> getTransactions(User user, int cursor, int limit) {
+        synchronized (user) {
+            int index;
+            if (cursor == TransactionStore.NONE) {
+                index = user.lastTransaction;
+            } else if (cursor >= 0 && cursor < transactionStore.size() && transactionStore.userId(cursor) == user.id) {
+                index = transactionStore.previous(cursor);
+            } else {
+                throw new IllegalArgumentException("Unknown cursor");
+            }
+            List<Transaction> page = new ArrayList<>(Math.min(limit, user.transactionCount));
+            while (index != TransactionStore.NONE && page.size() < limit) {
+                page.add(readTransaction(index));
+                index = transactionStore.previous(index);
+            }
+            return page;
+        }
+    }
+
+    /** True when the user has transactions older than this one. */
+    public boolean hasOlderTransactions(Transaction transaction) {
+        return transactionStore.previous(transaction.id) != TransactionStore.NONE;
+    }
+
+    private Transaction readTransaction(int index) {
+        return new Transaction(index, transactionStore.userId(index), productTable.get(transactionStore.productId(index)),
+                transactionStore.amount(index), transactionStore.status(index) == TransactionStore.SUCCEEDED,
+                transactionStore.timestamp(index));
+    }
+}
@@ -0,0 +1,526 @@
+package gateway;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of every PaymentGateway mutation: registrations, payment method updates,
+ * payments and users moved to another cluster node. On startup the journal is replayed to rebuild the gateway.
+ *
+ * Record layout (big-endian):
+ *   int  payload length
+ *   long lsn            - log sequence number, strictly increasing across segments
+ *   byte type
+ *   ...  payload        - strings are an int byte length (-1 for null) followed by UTF-8 bytes
+ *   int  crc32          - over lsn, type and payload
+ *
+ * Card numbers are written sealed by CardCipher and card verification codes are not written at all, so a card
+ * restored from the journal cannot be charged until the user sends its details again.
+ *
+ * Records are copied into an in-memory buffer by the request threads and written out by a single flusher thread
+ * into FileChannel segments (journal-NNNNNNNNNNNNNNNN.log, rolled at -Dgateway.journal.segmentBytes). How much an
+ * acknowledged request can lose on a crash is set with -Dgateway.journal.durability:
+ *   sync     - requests wait until their record is fsynced; concurrent requests share one fsync (group commit)
+ *   periodic - records are fsynced every -Dgateway.journal.flushIntervalMs, requests do not wait
+ *   none     - records are handed to the OS every flush interval but never fsynced
+ */
+final class PaymentJournal implements Closeable {
+    enum Durability {
+        SYNC, PERIODIC, NONE
+    }
+
+    static final byte REGISTER = 1;
+    static final byte PAYMENT_METHOD = 2;
+    static final byte PAYMENT = 3;
+    static final byte REMOVE = 4;
+
+    private static final int HEADER_BYTES = 4 + 8 + 1;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int READ_BUFFER_BYTES = 4 * MAX_RECORD_BYTES; // Always holds a whole record
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final Durability durability;
+    private final long segmentBytes;
+    private final long flushIntervalMillis;
+    private final CardCipher cards;
+
+    // Guarded by this
+    private ByteBuffer active = ByteBuffer.allocate(2 * MAX_RECORD_BYTES);
+    private ByteBuffer flushing = ByteBuffer.allocate(2 * MAX_RECORD_BYTES);
+    private long nextLsn = 1;
+    private long durableLsn;
+    private IOException failure;
+    private boolean closed;
+
+    // Guarded by segmentLock once the flusher has started
+    private final Object segmentLock = new Object();
+    private FileChannel segment;
+    private long segmentIndex;
+    private Thread flusher;
+
+    private PaymentJournal(Path directory, Durability durability, long segmentBytes, long flushIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.cards = CardCipher.forJournal(directory);
+    }
+
+    /** Opens the journal configured by system properties, or returns null when it is turned off. */
+    static PaymentJournal fromSystemProperties() throws IOException {
+        String mode = System.getProperty("gateway.journal.durability", "sync").trim().toUpperCase();
+        if (mode.equals("OFF")) {
+            return null;
+        }
+        Path directory = Paths.get(System.getProperty("gateway.journal.dir", "data"));
+        long segmentBytes = Long.getLong("gateway.journal.segmentBytes", 64L << 20);
+        long flushIntervalMillis = Long.getLong("gateway.journal.flushIntervalMs", 10);
+        return new PaymentJournal(directory, Durability.valueOf(mode), segmentBytes, flushIntervalMillis);
+    }
+
+    static PaymentJournal open(Path directory, Durability durability) throws IOException {
+        return new PaymentJournal(directory, durability, 64L << 20, 10);
+    }
+
+    Durability durability() {
+        return durability;
+    }
+
+    /** Seals the card numbers written next to the journal, in snapshots as well. */
+    CardCipher cards() {
+        return cards;
+    }
+
+    /**
+     * Replays every segment into the gateway, then starts accepting appends. A torn record at the end of the
+     * newest segment (a crash mid-write) is truncated away; damage anywhere else fails startup. Records already
+     * contained in a loaded snapshot are skipped by the gateway, and numbering continues above snapshotLsn.
+     */
+    long recover(PaymentGateway gateway, long snapshotLsn) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        long records = 0;
+        long lastLsn = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            boolean newest = i == segments.size() - 1;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Segments can outgrow any one buffer, so they are read a few records at a time
+                ByteBuffer data = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                data.flip();
+                long offset = 0; // Of the buffer's first byte in the segment
+                boolean end = false;
+                while (true) {
+                    if (!end && !holdsWholeRecord(data)) {
+                        offset += data.position();
+                        data.compact();
+                        while (data.hasRemaining()) {
+                            if (channel.read(data) < 0) {
+                                end = true;
+                                break;
+                            }
+                        }
+                        data.flip();
+                    }
+                    if (!data.hasRemaining()) {
+                        break;
+                    }
+                    long start = offset + data.position();
+                    long lsn = readRecord(data, gateway);
+                    if (lsn < 0) {
+                        if (!newest) {
+                            throw new IOException("Corrupt journal record in " + path + " at offset " + start);
+                        }
+                        GatewayLog.warn("journal.torn-tail-truncated", "file", path, "offset", start);
+                        channel.truncate(start);
+                        channel.force(true);
+                        break;
+                    }
+                    lastLsn = lsn;
+                    records++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            nextLsn = Math.max(lastLsn, snapshotLsn) + 1;
+            durableLsn = nextLsn - 1;
+        }
+        segmentIndex = segments.isEmpty() ? 1 : segmentIndexOf(segments.get(segments.size() - 1));
+        openSegment();
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return records;
+    }
+
+    long logRegistration(User user) {
+        RecordBuilder record = new RecordBuilder();
+        record.putString(user.username);
+        record.putString(user.passwordHash);
+        return append(REGISTER, record);
+    }
+
+    long logPaymentMethod(User user) {
+        RecordBuilder record = new RecordBuilder();
+        record.putString(user.username);
+        record.putString(user.paymentMethod);
+        record.putString(cards.seal(user.cardNumber));
+        record.putString(user.cardExpiry);
+        record.putString(user.bankAccount);
+        record.putString(user.upiId);
+        return append(PAYMENT_METHOD, record);
+    }
+
+    long logPayment(User user, Transaction transaction, String paymentMethod) {
+        RecordBuilder record = new RecordBuilder();
+        record.putString(user.username);
+        record.putString(transaction.product.name);
+        record.putLong(Double.doubleToLongBits(transaction.product.price));
+        record.putByte(transaction.successful ? 1 : 0);
+        record.putLong(transaction.timestamp);
+        record.putString(paymentMethod);
+        return append(PAYMENT, record);
+    }
+
+    long logRemoval(User user) {
+        RecordBuilder record = new RecordBuilder();
+        record.putString(user.username);
+        return append(REMOVE, record);
+    }
+
+    /**
+     * Blocks until the record with the given lsn is as durable as the configured mode promises. Only sync mode
+     * waits for the disk; the other modes return as soon as the record is buffered.
+     */
+    void awaitDurable(long lsn) {
+        if (lsn == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (durability == Durability.SYNC) {
+                boolean interrupted = false;
+                while (durableLsn < lsn && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Journal write failed", failure);
+            }
+        }
+    }
+
+    private synchronized long append(byte type, RecordBuilder record) {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        int size = HEADER_BYTES + record.length + 4;
+        if (size > MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Journal record too large: " + size + " bytes");
+        }
+        boolean interrupted = false;
+        while (active.remaining() < size && failure == null) {
+            notifyAll(); // Wake the flusher so it swaps buffers
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+
+        long lsn = nextLsn++;
+        CRC32 crc = new CRC32();
+        int crcStart = active.position() + 4;
+        active.putInt(record.length);
+        active.putLong(lsn);
+        active.put(type);
+        active.put(record.bytes, 0, record.length);
+        crc.update(active.array(), active.arrayOffset() + crcStart, active.position() - crcStart);
+        active.putInt((int) crc.getValue());
+        if (durability == Durability.SYNC) {
+            notifyAll();
+        }
+        return lsn;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchLsn;
+            synchronized (this) {
+                try {
+                    if (durability == Durability.SYNC) {
+                        while (active.position() == 0 && !closed) {
+                            wait();
+                        }
+                    } else if (!closed) {
+                        wait(flushIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (active.position() == 0) {
+                    if (closed) {
+                        break;
+                    }
+                    continue;
+                }
+                // Everything appended so far goes out with this write and fsync
+                batch = active;
+                active = flushing;
+                flushing = batch;
+                batchLsn = nextLsn - 1;
+                notifyAll();
+            }
+
+            try {
+                synchronized (segmentLock) {
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        segment.write(batch);
+                    }
+                    batch.clear();
+                    if (durability != Durability.NONE) {
+                        segment.force(false);
+                    }
+                    if (segment.size() >= segmentBytes) {
+                        rollSegment();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                GatewayLog.error("journal.write-failed", e);
+                return;
+            }
+
+            synchronized (this) {
+                durableLsn = batchLsn;
+                notifyAll();
+            }
+        }
+        try {
+            synchronized (segmentLock) {
+                segment.force(true);
+                segment.close();
+            }
+        } catch (IOException e) {
+            GatewayLog.error("journal.close-failed", e);
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one, returning its index. Every record appended before this call
+     * lives in an older segment or in the write buffer, which always drains into the new segment.
+     */
+    long startNewSegment() throws IOException {
+        synchronized (segmentLock) {
+            rollSegment();
+            return segmentIndex;
+        }
+    }
+
+    /** Deletes segments whose records are all covered by a snapshot. */
+    void deleteSegmentsBefore(long index) throws IOException {
+        for (Path path : listSegments()) {
+            if (segmentIndexOf(path) < index) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    synchronized long lastAssignedLsn() {
+        return nextLsn - 1;
+    }
+
+    private void rollSegment() throws IOException {
+        segment.force(true);
+        segment.close();
+        segmentIndex++;
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        segment = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /** Flushes and fsyncs everything appended so far, then stops the flusher. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // True when the buffer holds the whole record at its position, or enough to tell the record is invalid
+    private static boolean holdsWholeRecord(ByteBuffer data) {
+        if (data.remaining() < HEADER_BYTES + 4) {
+            return false;
+        }
+        int length = data.getInt(data.position());
+        return length < 0 || length > MAX_RECORD_BYTES || data.remaining() >= HEADER_BYTES + length + 4;
+    }
+
+    // Returns the lsn of the applied record, or -1 if the bytes at the current position are not a whole, valid record
+    private long readRecord(ByteBuffer data, PaymentGateway gateway) throws IOException {
+        if (data.remaining() < HEADER_BYTES + 4) {
+            return -1;
+        }
+        int start = data.position();
+        int length = data.getInt();
+        if (length < 0 || length > MAX_RECORD_BYTES || data.remaining() < 8 + 1 + length + 4) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), data.arrayOffset() + start + 4, 8 + 1 + length);
+        int end = start + HEADER_BYTES + length;
+        if (data.getInt(end) != (int) crc.getValue()) {
+            return -1;
+        }
+
+        long lsn = data.getLong();
+        byte type = data.get();
+        switch (type) {
+            case REGISTER: {
+                gateway.replayRegistration(lsn, getString(data), getString(data));
+                break;
+            }
+            case PAYMENT_METHOD: {
+                String username = getString(data);
+                String method = getString(data);
+                Map<String, String> details = new HashMap<>();
+                details.put("cardNumber", cards.open(getString(data)));
+                details.put("cardExpiry", getString(data));
+                details.put("bankAccount", getString(data));
+                details.put("upiId", getString(data));
+                gateway.replayPaymentMethod(lsn, username, method, details);
+                break;
+            }
+            case PAYMENT: {
+                String username = getString(data);
+                String productName = getString(data);
+                double price = Double.longBitsToDouble(data.getLong());
+                boolean successful = data.get() != 0;
+                long timestamp = data.getLong();
+                gateway.replayPayment(lsn, username, productName, price, successful, timestamp, getString(data));
+                break;
+            }
+            case REMOVE: {
+                gateway.replayRemoval(lsn, getString(data));
+                break;
+            }
+            default:
+                return -1;
+        }
+        data.position(end + 4);
+        return lsn;
+    }
+
+    private static String getString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(Comparator.comparingLong(PaymentJournal::segmentIndexOf));
+        return segments;
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentIndexOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /** Growable byte array for one record's payload, filled before the journal lock is taken. */
+    private static final class RecordBuilder {
+        byte[] bytes = new byte[128];
+        int length;
+
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            putInt(encoded.length);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
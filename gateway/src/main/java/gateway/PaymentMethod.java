@@ -0,0 +1,41 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A way for a user to pay, identified by the name stored in User.paymentMethod.
+ *
+ * Each method owns the User fields it uses: it copies them from a payment method update, checks them before a
+ * payment and writes their masked form into responses. Callers hold the User's monitor. New methods are plugged in
+ * with register(); names with no registered method are stored but never pass validation.
+ */
+interface PaymentMethod {
+    /** The name clients send and User.paymentMethod stores. */
+    String name();
+
+    /** Copies this method's details from an update request onto the user. */
+    void apply(User user, Map<String, String> details);
+
+    /** True when the user's stored details are complete and well-formed. */
+    boolean isValid(User user);
+
+    /** Writes the user's details for a response, masking anything sensitive. */
+    void writeDetails(JsonResponseWriter json, User user) throws IOException;
+
+    /**
+     * Identifies the card, account or handle the user's details pay from, the same however it was typed, so
+     * velocity limits can follow it across users. Null when the method has no instrument of its own.
+     */
+    default String instrument(User user) {
+        return null;
+    }
+
+    static PaymentMethod forName(String name) {
+        return name != null ? PaymentMethods.BY_NAME.get(name) : null;
+    }
+
+    static void register(PaymentMethod method) {
+        PaymentMethods.BY_NAME.put(method.name(), method);
+    }
+}
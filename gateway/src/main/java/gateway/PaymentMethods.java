@@ -0,0 +1,157 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry behind PaymentMethod.forName() and the built-in methods it starts with: credit card, bank account,
+ * UPI and PayPal.
+ */
+final class PaymentMethods {
+    static final Map<String, PaymentMethod> BY_NAME = new ConcurrentHashMap<>();
+
+    static {
+        PaymentMethod.register(new CreditCard());
+        PaymentMethod.register(new BankAccount());
+        PaymentMethod.register(new Upi());
+        PaymentMethod.register(new PayPal());
+    }
+
+    private PaymentMethods() {
+    }
+
+    static final class CreditCard implements PaymentMethod {
+        @Override
+        public String name() {
+            return "Credit Card";
+        }
+
+        @Override
+        public void apply(User user, Map<String, String> details) {
+            user.cardNumber = details.get("cardNumber");
+            user.cardExpiry = details.get("cardExpiry");
+            user.cardCVV = details.get("cardCVV");
+        }
+
+        @Override
+        public boolean isValid(User user) {
+            return PaymentDetailValidator.isValidCard(user.cardNumber, user.cardExpiry, user.cardCVV);
+        }
+
+        @Override
+        public String instrument(User user) {
+            return digits(user.cardNumber);
+        }
+
+        @Override
+        public void writeDetails(JsonResponseWriter json, User user) throws IOException {
+            if (user.cardNumber != null) {
+                json.name("cardNumber").value(mask("xxxx-xxxx-xxxx-", user.cardNumber));
+                json.name("cardExpiry").value(user.cardExpiry);
+                // Don't send CVV back to client for security
+            }
+        }
+    }
+
+    static final class BankAccount implements PaymentMethod {
+        @Override
+        public String name() {
+            return "Bank Account";
+        }
+
+        @Override
+        public void apply(User user, Map<String, String> details) {
+            user.bankAccount = details.get("bankAccount");
+        }
+
+        @Override
+        public boolean isValid(User user) {
+            return PaymentDetailValidator.isValidBankAccount(user.bankAccount);
+        }
+
+        @Override
+        public String instrument(User user) {
+            return digits(user.bankAccount);
+        }
+
+        @Override
+        public void writeDetails(JsonResponseWriter json, User user) throws IOException {
+            if (user.bankAccount != null) {
+                json.name("bankAccount").value(mask("xxxxxxxx", user.bankAccount));
+            }
+        }
+    }
+
+    static final class Upi implements PaymentMethod {
+        @Override
+        public String name() {
+            return "UPI";
+        }
+
+        @Override
+        public void apply(User user, Map<String, String> details) {
+            user.upiId = details.get("upiId");
+        }
+
+        @Override
+        public boolean isValid(User user) {
+            return PaymentDetailValidator.isValidUpiId(user.upiId);
+        }
+
+        @Override
+        public String instrument(User user) {
+            return user.upiId != null ? user.upiId.toLowerCase(Locale.ROOT) : null;
+        }
+
+        @Override
+        public void writeDetails(JsonResponseWriter json, User user) throws IOException {
+            if (user.upiId != null) {
+                json.name("upiId").value(user.upiId);
+            }
+        }
+    }
+
+    // Nothing to store; for this simulation a PayPal account is always valid
+    static final class PayPal implements PaymentMethod {
+        @Override
+        public String name() {
+            return "PayPal";
+        }
+
+        @Override
+        public void apply(User user, Map<String, String> details) {
+        }
+
+        @Override
+        public boolean isValid(User user) {
+            return true;
+        }
+
+        @Override
+        public void writeDetails(JsonResponseWriter json, User user) {
+        }
+    }
+
+    // Drops the spaces and dashes a number may be typed with
+    private static String digits(String number) {
+        if (number == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    // Keeps only the last four characters; values too short to mask are sent as they are
+    static String mask(String prefix, String number) {
+        String lastFour = PaymentDetailValidator.lastFourDigits(number);
+        return lastFour != null ? prefix + lastFour : number;
+    }
+}
@@ -0,0 +1,306 @@
+package gateway;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Takes payments from request threads and sees each through authorization. accept() only registers the payment
+ * and starts the processor call, so a request never waits for the acquirer; the outcome is recorded later and read
+ * back by payment id.
+ *
+ * Every attempt is bounded by -Dgateway.processor.timeoutMs (default 3000). Attempts that fail or time out are
+ * retried up to -Dgateway.processor.maxAttempts (3) in all, waiting -Dgateway.processor.backoffMs (100) and then
+ * twice as long before each retry. After -Dgateway.processor.breaker.failures (20) failed attempts in a row the
+ * circuit breaker opens for -Dgateway.processor.breaker.openSeconds (10): new payments are refused with 503 until a
+ * trial attempt succeeds, and retries that come due meanwhile are parked and sent once the breaker lets calls
+ * through again. A payment is only recorded as failed after its attempts have reached the processor.
+ *
+ * At most -Dgateway.payment.maxPending (20000) payments wait for the processor at once, so a slow acquirer cannot
+ * pile up work without limit. Outcomes are recorded in the journal on -Dgateway.payment.completionThreads (16)
+ * threads, which share journal flushes, and stay readable for -Dgateway.payment.retainSeconds (3600), keeping at
+ * most -Dgateway.payment.maxRetained (100000). Pending payments are not journaled; a restart forgets them, and the
+ * payer, who never saw an outcome, can retry.
+ */
+final class PaymentPipeline {
+    /** A payment refused before it was accepted; the client may try again after retryAfterNanos. */
+    static final class RejectedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterNanos;
+
+        RejectedException(String message, long retryAfterNanos) {
+            super(message, null, false, false);
+            this.retryAfterNanos = retryAfterNanos;
+        }
+    }
+
+    private final PaymentGateway gateway;
+    private final PaymentProcessor processor;
+    private final CircuitBreaker breaker;
+    private final ExecutorService completions;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final int maxPending;
+    private final int maxRetained;
+    private final long retainNanos;
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 20); // Not reused after a restart
+    private final Map<Long, Payment> payments = new ConcurrentHashMap<>();
+    private final Queue<Payment> completionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger retained = new AtomicInteger();
+    private final Queue<Payment> parked = new ConcurrentLinkedQueue<>(); // Retries held back by the breaker
+    private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+    private final LatencyHistogram processorLatency = new LatencyHistogram();
+    private final LongAdder approved = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile Consumer<Payment> listener = payment -> { };
+
+    PaymentPipeline(PaymentGateway gateway, PaymentProcessor processor, CircuitBreaker breaker, int completionThreads,
+            long timeoutMillis, int maxAttempts, long backoffMillis, int maxPending, int maxRetained,
+            long retainSeconds) {
+        this.gateway = gateway;
+        this.processor = processor;
+        this.breaker = breaker;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = backoffMillis;
+        this.maxPending = maxPending;
+        this.maxRetained = maxRetained;
+        this.retainNanos = TimeUnit.SECONDS.toNanos(retainSeconds);
+        AtomicInteger counter = new AtomicInteger();
+        this.completions = Executors.newFixedThreadPool(completionThreads, task -> {
+            Thread thread = new Thread(task, "payment-completion-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static PaymentPipeline fromSystemProperties(PaymentGateway gateway) {
+        return new PaymentPipeline(gateway, PaymentProcessor.fromSystemProperties(),
+                new CircuitBreaker(Integer.getInteger("gateway.processor.breaker.failures", 20),
+                        TimeUnit.SECONDS.toNanos(Long.getLong("gateway.processor.breaker.openSeconds", 10))),
+                Integer.getInteger("gateway.payment.completionThreads", 16),
+                Long.getLong("gateway.processor.timeoutMs", 3000),
+                Integer.getInteger("gateway.processor.maxAttempts", 3),
+                Long.getLong("gateway.processor.backoffMs", 100),
+                Integer.getInteger("gateway.payment.maxPending", 20_000),
+                Integer.getInteger("gateway.payment.maxRetained", 100_000),
+                Long.getLong("gateway.payment.retainSeconds", 3600));
+    }
+
+    /** Called with each payment once its outcome is recorded, on a completion thread. */
+    void onComplete(Consumer<Payment> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts authorizing a payment of the product with the user's current payment method, which the caller has
+     * checked, and returns it while still pending.
+     */
+    Payment accept(User user, Product product, String paymentMethod) throws RejectedException {
+        long wait = breaker.retryAfterNanos();
+        if (wait > 0) {
+            rejected.increment();
+            throw new RejectedException("Payment processor unavailable", wait);
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new RejectedException("Too many payments pending", TimeUnit.SECONDS.toNanos(1));
+        }
+        // Counted on the user too, so it is not moved to another cluster node with an outcome still to record
+        synchronized (user) {
+            if (user.moved) {
+                pending.decrementAndGet();
+                rejected.increment();
+                throw new RejectedException("Account is moving to another node", TimeUnit.SECONDS.toNanos(1));
+            }
+            user.pendingPayments++;
+        }
+        // Checked last, since a half-open breaker hands out its one trial call here
+        if (!breaker.allowRequest()) {
+            synchronized (user) {
+                user.pendingPayments--;
+            }
+            pending.decrementAndGet();
+            rejected.increment();
+            throw new RejectedException("Payment processor unavailable",
+                    Math.max(breaker.retryAfterNanos(), TimeUnit.SECONDS.toNanos(1)));
+        }
+        Payment payment = new Payment(nextId.getAndIncrement(), user, product, paymentMethod);
+        payments.put(payment.id, payment);
+        call(payment);
+        return payment;
+    }
+
+    /** The payment with this id, pending or retained, or null. */
+    Payment find(long id) {
+        return payments.get(id);
+    }
+
+    // A retry; it waits while the breaker refuses calls
+    private void retry(Payment payment) {
+        if (!breaker.allowRequest()) {
+            parked.add(payment);
+            scheduleWake();
+            return;
+        }
+        call(payment);
+    }
+
+    // Tries the parked retries again once the breaker may let a call through: when its open interval ends, or,
+    // while a trial call is out, once the trial can no longer be running
+    private void scheduleWake() {
+        if (!wakeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = breaker.state() == CircuitBreaker.State.OPEN
+                ? Math.max(breaker.retryAfterNanos(), TimeUnit.MILLISECONDS.toNanos(backoffMillis))
+                : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, completions).execute(() -> {
+            wakeScheduled.set(false);
+            resumeParked();
+        });
+    }
+
+    private void resumeParked() {
+        // Only those parked now; any the breaker still refuses go to the back of the queue
+        for (int n = parked.size(); n > 0; n--) {
+            Payment payment = parked.poll();
+            if (payment == null) {
+                return;
+            }
+            retry(payment);
+        }
+    }
+
+    // The caller has been allowed the call by the breaker
+    private void call(Payment payment) {
+        payment.attempts++;
+        long start = System.nanoTime();
+        CompletableFuture<Authorization> call;
+        try {
+            call = processor.authorize(payment);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        // Runs on whichever thread completed the call, often the processor's own; anything slow is handed off
+        call.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((authorization, failure) -> {
+            processorLatency.record(System.nanoTime() - start);
+            if (failure == null) {
+                breaker.recordSuccess();
+                if (!parked.isEmpty()) {
+                    completions.execute(this::resumeParked);
+                }
+                if (authorization.approved) {
+                    approved.increment();
+                    completions.execute(() -> finish(payment, Payment.Status.AUTHORIZED, null));
+                } else {
+                    declined.increment();
+                    completions.execute(() -> finish(payment, Payment.Status.DECLINED, authorization.reason));
+                }
+                return;
+            }
+            breaker.recordFailure();
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+            boolean timedOut = cause instanceof TimeoutException;
+            (timedOut ? timeouts : errors).increment();
+            if (payment.attempts < maxAttempts) {
+                retries.increment();
+                long delay = backoffMillis << (payment.attempts - 1);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, completions)
+                        .execute(() -> retry(payment));
+            } else {
+                GatewayLog.warn("payment.failed", "payment", payment.id, "attempts", payment.attempts,
+                        "error", cause);
+                completions.execute(() -> finish(payment, Payment.Status.FAILED,
+                        timedOut ? "Payment processor timed out" : "Payment processor error"));
+            }
+        });
+    }
+
+    private void finish(Payment payment, Payment.Status outcome, String reason) {
+        Transaction transaction = null;
+        try {
+            transaction = gateway.recordPayment(payment.user, payment.product, payment.paymentMethod,
+                    outcome == Payment.Status.AUTHORIZED);
+        } catch (RuntimeException e) {
+            GatewayLog.error("payment.record-failed", e, "payment", payment.id);
+            outcome = Payment.Status.FAILED;
+            reason = "Payment could not be recorded";
+        }
+        synchronized (payment.user) {
+            payment.user.pendingPayments--;
+        }
+        payment.complete(outcome, reason, transaction);
+        pending.decrementAndGet();
+        completionOrder.add(payment);
+        retained.incrementAndGet();
+        evictCompleted(System.nanoTime());
+        GatewayLog.debug("payment.complete", "payment", payment.id, "status", outcome, "attempts", payment.attempts);
+        listener.accept(payment);
+    }
+
+    // Payments complete in retention order, so both limits are enforced from the head of one queue
+    private void evictCompleted(long now) {
+        while (true) {
+            Payment oldest = completionOrder.peek();
+            if (oldest == null || (retained.get() <= maxRetained && now - oldest.completedAt() < retainNanos)) {
+                return;
+            }
+            if (completionOrder.remove(oldest)) {
+                retained.decrementAndGet();
+                payments.remove(oldest.id, oldest);
+            }
+        }
+    }
+
+    int pendingCount() {
+        return pending.get();
+    }
+
+    CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    LatencyHistogram processorLatency() {
+        return processorLatency;
+    }
+
+    long approvedCount() {
+        return approved.sum();
+    }
+
+    long declinedCount() {
+        return declined.sum();
+    }
+
+    long errorCount() {
+        return errors.sum();
+    }
+
+    long timeoutCount() {
+        return timeouts.sum();
+    }
+
+    long retryCount() {
+        return retries.sum();
+    }
+
+    /** Payments refused by accept() because the pipeline was full, the breaker open or the user moving. */
+    long rejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,31 @@
+package gateway;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Authorizes payments with an acquirer. Implementations must not block the caller: authorize starts the request and
+ * returns a future that completes with the decision, or exceptionally when no decision was made (a network error,
+ * an unavailable acquirer), which the PaymentPipeline retries.
+ *
+ * A retried payment is passed again with the same id and a higher attempt count. Implementations talking to a real
+ * acquirer should send the id as its idempotency key, so an attempt that timed out here but reached the acquirer
+ * cannot charge twice.
+ *
+ * The processor is chosen with -Dgateway.processor: "simulated" (the default) or the name of a class with a public
+ * no-argument constructor.
+ */
+interface PaymentProcessor {
+    CompletableFuture<Authorization> authorize(Payment payment);
+
+    static PaymentProcessor fromSystemProperties() {
+        String name = System.getProperty("gateway.processor", "simulated");
+        if (name.equals("simulated")) {
+            return SimulatedPaymentProcessor.fromSystemProperties();
+        }
+        try {
+            return (PaymentProcessor) Class.forName(name).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Cannot create payment processor " + name, e);
+        }
+    }
+}
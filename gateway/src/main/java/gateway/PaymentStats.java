@@ -0,0 +1,189 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Payment aggregates kept up to date as each transaction is recorded, so /api/stats never walks the history.
+ *
+ * Totals are striped LongAdders kept per payment method and product pair, so a payment updates one set of totals
+ * and product or method totals are summed over the pairs when read. Recent volume is a ring of one-second buckets
+ * covering the last WINDOW_SECONDS, indexed by the transaction's second; a bucket still holding an older second is
+ * replaced with a CAS by the first payment of its new second. Reading a window sums at most WINDOW_SECONDS buckets,
+ * so every answer costs the same however many payments have been made.
+ *
+ * Recording takes no lock, and reads see each counter's current value, so a read racing payments can count a
+ * payment in one total before another.
+ */
+final class PaymentStats {
+    static final int WINDOW_SECONDS = 300;
+
+    // By payment method, then ProductTable id
+    private final Map<String, Map<Integer, Totals>> totals = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(WINDOW_SECONDS);
+
+    /** Payment counts and the amount of the successful ones, in minor units; two adds per payment. */
+    static class Totals {
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder amount = new LongAdder();
+
+        void add(boolean successful, long amount) {
+            if (successful) {
+                succeeded.increment();
+                this.amount.add(amount);
+            } else {
+                failed.increment();
+            }
+        }
+
+        void subtract(boolean successful, long amount) {
+            if (successful) {
+                succeeded.decrement();
+                this.amount.add(-amount);
+            } else {
+                failed.decrement();
+            }
+        }
+
+        void addTo(long[] sums) {
+            sums[0] += succeeded.sum();
+            sums[1] += failed.sum();
+            sums[2] += amount.sum();
+        }
+    }
+
+    private static final class Bucket extends Totals {
+        final long second;
+
+        Bucket(long second) {
+            this.second = second;
+        }
+    }
+
+    /** Counts one recorded transaction; the payment method is the one it was charged to, null if none. */
+    void record(Product product, String paymentMethod, long amount, boolean successful, long timestamp) {
+        totals(product, paymentMethod).add(successful, amount);
+
+        // Replayed history lands in buckets outside the window, or is skipped once newer seconds hold the slots
+        Bucket bucket = bucket(timestamp / 1000);
+        if (bucket != null) {
+            bucket.add(successful, amount);
+        }
+    }
+
+    /**
+     * Takes back a transaction record() counted, when its user leaves this node for another cluster member, which
+     * counts the user's history from then on.
+     */
+    void remove(Product product, String paymentMethod, long amount, boolean successful, long timestamp) {
+        totals(product, paymentMethod).subtract(successful, amount);
+        long second = timestamp / 1000;
+        Bucket bucket = buckets.get(Math.floorMod(second, WINDOW_SECONDS));
+        if (bucket != null && bucket.second == second) {
+            bucket.subtract(successful, amount);
+        }
+    }
+
+    private Totals totals(Product product, String paymentMethod) {
+        String method = paymentMethod == null ? "none"
+                : PaymentMethod.forName(paymentMethod) != null ? paymentMethod : "unknown";
+        Map<Integer, Totals> byProduct = totals.get(method);
+        if (byProduct == null) {
+            byProduct = totals.computeIfAbsent(method, m -> new ConcurrentHashMap<>());
+        }
+        Totals pair = byProduct.get(product.id);
+        if (pair == null) {
+            pair = byProduct.computeIfAbsent(product.id, id -> new Totals());
+        }
+        return pair;
+    }
+
+    // Null when the slot already holds a later second
+    private Bucket bucket(long second) {
+        int index = Math.floorMod(second, WINDOW_SECONDS);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.second >= second) {
+                return bucket.second == second ? bucket : null;
+            }
+            Bucket fresh = new Bucket(second);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Sums the buckets of the last seconds, up to WINDOW_SECONDS, ending with the current one, as successful and
+     * failed payments and the successful amount.
+     */
+    long[] window(int seconds) {
+        long now = System.currentTimeMillis() / 1000;
+        long from = now - Math.min(seconds, WINDOW_SECONDS);
+        long[] sums = new long[3];
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.second > from && bucket.second <= now) {
+                bucket.addTo(sums);
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Writes the stats as one JSON object: totals per product, looked up in the product table, and per payment
+     * method, then the payments of the last minute and the last five minutes.
+     */
+    void write(JsonResponseWriter json, PaymentGateway gateway) throws IOException {
+        Map<Integer, long[]> products = new TreeMap<>();
+        Map<String, long[]> methods = new TreeMap<>();
+        totals.forEach((method, byProduct) -> byProduct.forEach((productId, pair) -> {
+            pair.addTo(products.computeIfAbsent(productId, id -> new long[3]));
+            pair.addTo(methods.computeIfAbsent(method, m -> new long[3]));
+        }));
+
+        json.beginObject();
+        json.name("products").beginArray();
+        for (Map.Entry<Integer, long[]> entry : products.entrySet()) {
+            Product product = gateway.getProduct(entry.getKey());
+            json.beginObject();
+            json.name("id").value(product.id);
+            json.name("name").value(product.name);
+            json.name("price").value(product.price);
+            writeSums(json, entry.getValue());
+            json.endObject();
+        }
+        json.endArray();
+
+        json.name("paymentMethods").beginArray();
+        for (Map.Entry<String, long[]> entry : methods.entrySet()) {
+            long[] sums = entry.getValue();
+            long payments = sums[0] + sums[1];
+            json.beginObject();
+            json.name("method").value(entry.getKey());
+            writeSums(json, sums);
+            json.name("successRate").value(payments == 0 ? 0.0 : (double) sums[0] / payments);
+            json.endObject();
+        }
+        json.endArray();
+
+        json.name("lastMinute").beginObject();
+        writeSums(json, window(60));
+        json.endObject();
+        json.name("last5Minutes").beginObject();
+        writeSums(json, window(WINDOW_SECONDS));
+        json.endObject();
+        json.endObject();
+    }
+
+    private static void writeSums(JsonResponseWriter json, long[] sums) throws IOException {
+        json.name("payments").value(sums[0] + sums[1]);
+        json.name("succeeded").value(sums[0]);
+        json.name("revenue").value(TransactionStore.fromMinorUnits(sums[2]));
+    }
+}
@@ -0,0 +1,12 @@
+package gateway;
+
+class Product {
+    int id; // Assigned by ProductTable
+    String name;
+    double price;
+
+    Product(String name, double price) {
+        this.name = name;
+        this.price = price;
+    }
+}
@@ -0,0 +1,196 @@
+package gateway;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The products currently offered for sale, addressed by a stable catalog id.
+ *
+ * Catalog ids are the index into an array, so a payment resolves its product in O(1). They are distinct from
+ * Product.id, which ProductTable assigns to every name and price ever charged: updating a product's price keeps its
+ * catalog id and points it at a newly interned Product, while past transactions keep the one they were charged at.
+ * Removed ids are never reused.
+ *
+ * Every change publishes a new immutable Listing holding the /api/products body, already serialized, and an ETag
+ * derived from it, so reads never render or lock anything. Changes are serialized on the catalog and, when
+ * -Dgateway.catalog.file is set, written to that file before they are published; the file is loaded on startup.
+ */
+final class ProductCatalog {
+    /** One published version of the catalog. */
+    static final class Listing {
+        final long version;
+        final byte[] body;
+        final String etag;
+
+        Listing(long version, byte[] body, String etag) {
+            this.version = version;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    private final ProductTable table;
+    private volatile Product[] byId = new Product[0]; // Catalog id to product, null once removed
+    private volatile Listing listing;
+    private Path file;
+    private long version; // Guarded by this
+
+    ProductCatalog(ProductTable table) {
+        this.table = table;
+        publish(byId);
+    }
+
+    /** Returns the product offered under this catalog id, or null. */
+    Product get(int id) {
+        Product[] products = byId;
+        return id >= 0 && id < products.length ? products[id] : null;
+    }
+
+    /** The products on offer, in catalog id order. */
+    List<Product> products() {
+        List<Product> offered = new ArrayList<>();
+        for (Product product : byId) {
+            if (product != null) {
+                offered.add(product);
+            }
+        }
+        return offered;
+    }
+
+    Listing listing() {
+        return listing;
+    }
+
+    /** Adds a product and returns its catalog id. */
+    synchronized int add(String name, double price) throws IOException {
+        Product[] next = Arrays.copyOf(byId, byId.length + 1);
+        next[next.length - 1] = table.intern(name, price);
+        save(next);
+        publish(next);
+        return next.length - 1;
+    }
+
+    /** Changes the product behind a catalog id. Returns false when there is no such product. */
+    synchronized boolean update(int id, String name, double price) throws IOException {
+        if (get(id) == null) {
+            return false;
+        }
+        Product[] next = byId.clone();
+        next[id] = table.intern(name, price);
+        save(next);
+        publish(next);
+        return true;
+    }
+
+    /** Stops offering a product. Returns false when there is no such product. */
+    synchronized boolean remove(int id) throws IOException {
+        if (get(id) == null) {
+            return false;
+        }
+        Product[] next = byId.clone();
+        next[id] = null;
+        save(next);
+        publish(next);
+        return true;
+    }
+
+    /**
+     * Loads the catalog from -Dgateway.catalog.file when it is set and exists, and saves later changes there.
+     * Returns false when the defaults should be used.
+     */
+    synchronized boolean loadFromSystemProperties() throws IOException {
+        String path = System.getProperty("gateway.catalog.file");
+        if (path == null) {
+            return false;
+        }
+        file = Paths.get(path);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        // One "id<TAB>price<TAB>name" line per product; an empty name only holds a retired id
+        List<Product> loaded = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\t", 3);
+            if (parts.length != 3) {
+                throw new IOException("Malformed catalog line: " + line);
+            }
+            int id = Integer.parseInt(parts[0]);
+            while (loaded.size() <= id) {
+                loaded.add(null);
+            }
+            if (!parts[2].isEmpty()) {
+                loaded.set(id, table.intern(parts[2], Double.parseDouble(parts[1])));
+            }
+        }
+        publish(loaded.toArray(new Product[0]));
+        return true;
+    }
+
+    private void save(Product[] products) throws IOException {
+        if (file == null) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int id = 0; id < products.length; id++) {
+            if (products[id] != null) {
+                text.append(id).append('\t').append(products[id].price).append('\t').append(products[id].name)
+                        .append('\n');
+            }
+        }
+        // A removed trailing id must stay retired after a restart, so keep the array length
+        if (products.length > 0 && products[products.length - 1] == null) {
+            text.append(products.length - 1).append('\t').append("0.0\t\n");
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void publish(Product[] products) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (JsonResponseWriter json = new JsonResponseWriter(body)) {
+            json.beginObject();
+            json.name("success").value(true);
+            json.name("version").value(++version);
+            json.name("products").beginArray();
+            for (int id = 0; id < products.length; id++) {
+                if (products[id] != null) {
+                    json.beginObject();
+                    json.name("id").value(id);
+                    json.name("name").value(products[id].name);
+                    json.name("price").value(products[id].price);
+                    json.endObject();
+                }
+            }
+            json.endArray();
+            json.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by an in-memory stream
+        }
+        byte[] bytes = body.toByteArray();
+        byId = products;
+        listing = new Listing(version, bytes, etagOf(bytes));
+    }
+
+    // Derived from the content rather than the version, which starts over on every restart
+    static String etagOf(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 12; i++) {
+                etag.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                        .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
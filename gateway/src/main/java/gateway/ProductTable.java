@@ -0,0 +1,61 @@
+package gateway;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns products by name and price so transactions can refer to them by a small int id.
+ */
+final class ProductTable {
+    private final ConcurrentHashMap<String, Product[]> byName = new ConcurrentHashMap<>();
+    private volatile Product[] byId = new Product[16];
+    private int count; // Guarded by this
+
+    /** Returns the product with this name and price, creating it on first use. Lookups do not allocate. */
+    Product intern(String name, double price) {
+        Product existing = find(name, price);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this) {
+            existing = find(name, price);
+            if (existing != null) {
+                return existing;
+            }
+            Product product = new Product(name, price);
+            product.id = count;
+            Product[] table = byId;
+            if (count == table.length) {
+                table = Arrays.copyOf(table, count * 2);
+            }
+            table[count++] = product;
+            byId = table;
+
+            Product[] sameName = byName.get(name);
+            Product[] grown = sameName == null ? new Product[1] : Arrays.copyOf(sameName, sameName.length + 1);
+            grown[grown.length - 1] = product;
+            byName.put(name, grown);
+            return product;
+        }
+    }
+
+    Product get(int id) {
+        return byId[id];
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    private Product find(String name, double price) {
+        Product[] candidates = byName.get(name);
+        if (candidates != null) {
+            for (Product candidate : candidates) {
+                if (candidate.price == price) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,107 @@
+package gateway;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets, one per key, kept as the generic cell rate algorithm: each bucket is a single AtomicLong holding
+ * the time at which it will be full again, advanced by one emission interval per admitted request with a CAS. A
+ * request is admitted while that time is no further ahead than the burst allows, so checking a bucket never takes a
+ * lock and a full bucket needs no state at all.
+ *
+ * Buckets that have refilled are indistinguishable from new ones and are swept every 30 seconds. Keys beyond
+ * maxKeys between sweeps share one overflow bucket, so a flood of distinct keys is limited as one caller.
+ */
+final class RateLimiter {
+    private static final List<RateLimiter> LIMITERS = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "rate-limit-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SWEEPER.scheduleWithFixedDelay(() -> LIMITERS.forEach(RateLimiter::removeIdle), 30, 30, TimeUnit.SECONDS);
+    }
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+    private final LongAdder limited = new LongAdder();
+
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (1e9 / permitsPerSecond));
+        this.toleranceNanos = intervalNanos * burst;
+        this.maxKeys = maxKeys;
+        LIMITERS.add(this);
+    }
+
+    /**
+     * Parses "RATE" or "RATE:BURST", permits per second and requests allowed at once (default twice the rate, at
+     * least 1). Returns null for a missing spec, "off" or a rate of 0.
+     */
+    static RateLimiter parse(String spec, int maxKeys) {
+        if (spec == null || spec.equalsIgnoreCase("off")) {
+            return null;
+        }
+        int colon = spec.indexOf(':');
+        double rate = Double.parseDouble(colon < 0 ? spec : spec.substring(0, colon));
+        if (rate == 0) {
+            return null;
+        }
+        int burst = colon < 0 ? (int) Math.max(1, Math.ceil(rate * 2)) : Integer.parseInt(spec.substring(colon + 1));
+        return new RateLimiter(rate, burst, maxKeys);
+    }
+
+    /** Takes a token from the key's bucket. Returns 0 when admitted, otherwise nanoseconds until one is free. */
+    long acquire(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.size() < maxKeys
+                    ? buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()))
+                    : overflow;
+        }
+        long wait = acquire(bucket, System.nanoTime());
+        if (wait > 0) {
+            limited.increment();
+        }
+        return wait;
+    }
+
+    private long acquire(AtomicLong bucket, long now) {
+        while (true) {
+            long full = bucket.get();
+            long next = (full - now > 0 ? full : now) + intervalNanos;
+            long wait = next - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /** Requests refused so far. */
+    long limitedCount() {
+        return limited.sum();
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    // A removal racing an acquire can forget that one request; the bucket was nearly full anyway
+    void removeIdle() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
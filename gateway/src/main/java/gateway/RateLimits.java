@@ -0,0 +1,71 @@
+package gateway;
+
+/**
+ * The limits on one context: a global bucket and per client IP buckets, checked before the request is read, and per
+ * user buckets, checked once the handler knows the user and before it does the work.
+ *
+ * Each is configured as gateway.rateLimit.CONTEXT.global, .perIp or .perUser, where CONTEXT is the path after /api/
+ * (login, payment, payments/batch, ...) and the value is "RATE[:BURST]" or "off".
+ */
+final class RateLimits {
+    final String context;
+    final RateLimiter global;
+    final RateLimiter perIp;
+    final RateLimiter perUser;
+
+    private RateLimits(String context, RateLimiter global, RateLimiter perIp, RateLimiter perUser) {
+        this.context = context;
+        this.global = global;
+        this.perIp = perIp;
+        this.perUser = perUser;
+    }
+
+    static RateLimits fromSystemProperties(String path) {
+        String context = path.startsWith("/api/") ? path.substring(5) : path.equals("/") ? "root" : path.substring(1);
+        int maxKeys = Integer.getInteger("gateway.rateLimit.maxKeys", 1_000_000);
+        String prefix = "gateway.rateLimit." + context + ".";
+        return new RateLimits(context,
+                RateLimiter.parse(System.getProperty(prefix + "global"), 1),
+                RateLimiter.parse(System.getProperty(prefix + "perIp", defaultPerIp(context)), maxKeys),
+                RateLimiter.parse(System.getProperty(prefix + "perUser", defaultPerUser(context)), maxKeys));
+    }
+
+    // Login and registration hash a password on every call; payments take the user's lock
+    private static String defaultPerIp(String context) {
+        switch (context) {
+            case "login":
+                return "10:20";
+            case "register":
+                return "5:20";
+            default:
+                return null;
+        }
+    }
+
+    private static String defaultPerUser(String context) {
+        switch (context) {
+            case "login":
+                return "1:5";
+            case "payment":
+                return "50:100";
+            case "payments/batch":
+                return "5:10";
+            default:
+                return null;
+        }
+    }
+
+    /** Nanoseconds this client must wait before the context admits it, or 0 when it is admitted now. */
+    long admitClient(String ip) {
+        long wait = global != null ? global.acquire("") : 0;
+        if (wait == 0 && perIp != null) {
+            wait = perIp.acquire(ip);
+        }
+        return wait;
+    }
+
+    /** Nanoseconds this user must wait, or 0 when admitted. */
+    long admitUser(String username) {
+        return perUser != null ? perUser.acquire(username) : 0;
+    }
+}
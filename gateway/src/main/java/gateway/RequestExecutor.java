@@ -0,0 +1,139 @@
+package gateway;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor handed to HttpServer.setExecutor.
+ *
+ * Three modes are supported, chosen with -Dgateway.executor:
+ *   single  - run every exchange on the HttpServer dispatcher thread (the old setExecutor(null) behaviour)
+ *   pool    - a fixed pool of platform threads, sized by -Dgateway.threads
+ *   virtual - one virtual thread per exchange (needs a JDK with virtual threads, falls back to pool otherwise)
+ *
+ * Pool and virtual modes cap the number of exchanges queued or running at -Dgateway.maxInFlight. Once the cap
+ * is reached the exchange is not queued at all: it runs inline on the dispatcher with isShedding() set, and
+ * the context wrapper in Main answers 503 before touching the request body.
+ */
+final class RequestExecutor implements Executor {
+    enum Mode {
+        SINGLE, POOL, VIRTUAL
+    }
+
+    private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
+
+    private final Mode mode;
+    private final ExecutorService delegate;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+
+    private RequestExecutor(Mode mode, ExecutorService delegate, int maxInFlight) {
+        this.mode = mode;
+        this.delegate = delegate;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    static RequestExecutor fromSystemProperties() {
+        String name = System.getProperty("gateway.executor", "pool");
+        int threads = Integer.getInteger("gateway.threads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        int maxInFlight = Integer.getInteger("gateway.maxInFlight", 1024);
+        return create(Mode.valueOf(name.trim().toUpperCase()), threads, maxInFlight);
+    }
+
+    static RequestExecutor create(Mode mode, int threads, int maxInFlight) {
+        switch (mode) {
+            case SINGLE:
+                return new RequestExecutor(mode, null, Integer.MAX_VALUE);
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return new RequestExecutor(mode, virtual, maxInFlight);
+                }
+                GatewayLog.warn("executor.virtual-threads-unavailable", "using", "pool");
+                return create(Mode.POOL, threads, maxInFlight);
+            default:
+                return new RequestExecutor(Mode.POOL, Executors.newFixedThreadPool(threads, namedThreads()), maxInFlight);
+        }
+    }
+
+    // Looked up reflectively so the server still compiles and runs on JDKs without virtual threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads() {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "gateway-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** True while the current thread is running an exchange that was turned away because the server is saturated. */
+    static boolean isShedding() {
+        return SHEDDING.get() != null;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (delegate == null) {
+            task.run();
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            shed(task);
+            return;
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            shed(task);
+        }
+    }
+
+    private void shed(Runnable task) {
+        rejected.increment();
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            SHEDDING.remove();
+        }
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    /** Exchanges currently queued or running on worker threads. */
+    int inFlight() {
+        return delegate == null ? 0 : maxInFlight - permits.availablePermits();
+    }
+
+    long rejectedCount() {
+        return rejected.sum();
+    }
+
+    void shutdown() {
+        if (delegate != null) {
+            delegate.shutdown();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package gateway;
+
+/**
+ * Values bound from a request body, looked up by the field names the handler asked for.
+ */
+final class RequestFields {
+    private final String[] names;
+    private final String[] values;
+
+    RequestFields(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    String get(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name || names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,180 @@
+package gateway;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opaque bearer tokens issued on login, so payment requests authenticate with one map lookup instead of a
+ * password hash.
+ *
+ * Sessions expire after -Dgateway.session.ttlSeconds without use; each successful lookup pushes the expiry
+ * forward. At most -Dgateway.session.maxSessions are kept: issuing one more evicts the oldest issued session.
+ * Expired sessions are dropped when they are looked up and by a background sweep.
+ *
+ * A token starts with the user's HashRing position in hex and a '.', so a cluster node can tell which node holds
+ * the session without looking it up; the random part after it is what makes the token a secret.
+ */
+final class SessionCache {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Session {
+        final User user;
+        volatile long expiresAt; // System.nanoTime() deadline
+
+        Session(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /** Receives the sessions handed to another cluster node. */
+    interface SessionVisitor {
+        void visit(String token, User user, long remainingNanos) throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> issueOrder = new ConcurrentLinkedQueue<>();
+    private final long ttlNanos;
+    private final int maxSessions;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    SessionCache(long ttlSeconds, int maxSessions) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxSessions = maxSessions;
+    }
+
+    static SessionCache fromSystemProperties() {
+        SessionCache cache = new SessionCache(Long.getLong("gateway.session.ttlSeconds", 1800),
+                Integer.getInteger("gateway.session.maxSessions", 100_000));
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(cache::removeExpired, 30, 30, TimeUnit.SECONDS);
+        return cache;
+    }
+
+    /** Starts a session for the user and returns its token. */
+    String issue(User user) {
+        byte[] bytes = new byte[32];
+        RANDOM.nextBytes(bytes);
+        String token = Long.toHexString(HashRing.hash(user.username)) + '.'
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        add(token, user, ttlNanos);
+        return token;
+    }
+
+    /** Takes over a session issued by another node, keeping its token and the time it has left. */
+    void adopt(String token, User user, long remainingNanos) {
+        add(token, user, Math.min(remainingNanos, ttlNanos));
+    }
+
+    private void add(String token, User user, long lifetimeNanos) {
+        sessions.put(token, new Session(user, System.nanoTime() + lifetimeNanos));
+        issueOrder.add(token);
+        while (sessions.size() > maxSessions) {
+            String oldest = issueOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            if (sessions.remove(oldest) != null) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /** The HashRing position of the token's user, or 0 when the token does not carry one. */
+    static long ringHash(String token) {
+        int dot = token != null ? token.indexOf('.') : -1;
+        if (dot < 1 || dot > 16) {
+            return 0;
+        }
+        try {
+            return Long.parseUnsignedLong(token, 0, dot, 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Returns the session's user, or null for unknown and expired tokens. */
+    User resolve(String token) {
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null) {
+            misses.increment();
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - session.expiresAt > 0) {
+            if (sessions.remove(token, session)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        session.expiresAt = now + ttlNanos;
+        hits.increment();
+        return session.user;
+    }
+
+    void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /** Visits every live session of the given users, with the nanoseconds it has left. */
+    void forEach(Set<User> users, SessionVisitor visitor) throws IOException {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            long remaining = session.expiresAt - now;
+            if (remaining > 0 && users.contains(session.user)) {
+                visitor.visit(entry.getKey(), session.user, remaining);
+            }
+        }
+    }
+
+    void removeExpired() {
+        long now = System.nanoTime();
+        sessions.forEach((token, session) -> {
+            if (now - session.expiresAt > 0 && sessions.remove(token, session)) {
+                expirations.increment();
+            }
+        });
+        // Tokens that are gone from the map no longer need a place in the eviction order
+        issueOrder.removeIf(token -> !sessions.containsKey(token));
+    }
+
+    long ttlSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(ttlNanos);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long expirations() {
+        return expirations.sum();
+    }
+}
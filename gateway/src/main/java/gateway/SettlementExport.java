@@ -0,0 +1,549 @@
+package gateway;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Settlement files: every transaction made in a time range, grouped by the payment method it was charged to and
+ * its product (name and price), with totals per group and overall, written as CSV or a compact binary file to
+ * -Dgateway.settlement.dir (default settlements).
+ *
+ * An export covers the rows of the TransactionStore below the size read when it starts. Rows are never changed once
+ * appended, so that prefix is a consistent view however long the export takes, and payments keep appending above it
+ * meanwhile; a later export picks up the rest. Rows of users that have moved to another cluster node are left out,
+ * as snapshots leave them out, so a cluster's files add up to each payment once.
+ *
+ * The prefix is split into ranges of whole chunks, and the work runs in two passes over the ranges on a ForkJoinPool
+ * of -Dgateway.settlement.parallelism threads (default one per processor). The first pass counts each range's
+ * bytes per group and sums the totals. Those counts place every range's rows of every group in the file, so the
+ * second pass formats each range's rows into small per-group buffers and writes them straight to their place with
+ * positional FileChannel writes. Memory depends on the numbers of groups and ranges, not on the transactions.
+ *
+ * CSV columns: record, payment_method, product, unit_price, transaction_id, user_id, time, status, amount,
+ * transactions, failed. A transaction row fills the first nine, with its UTC time in ISO-8601; each group ends with
+ * a total row holding its settled amount, which counts successful transactions only, and its transaction and
+ * failure counts, and a grand total row ends the file. Amounts are in major units with two decimals.
+ *
+ * Binary layout (big-endian):
+ *   long magic, int version, long from, long to (epoch millis, to exclusive), long store rows covered
+ *   int payment method count, then per method id: name (id 0 is none)
+ *   int product count, then per product id: name, long unit price in minor units
+ *   int group count, then per group: byte method id, int product id, long transactions, long failed,
+ *             long settled amount in minor units, then per transaction: int transaction id, int user id,
+ *             long time, byte status
+ *   long transactions, long failed, long settled amount
+ * Strings are an int byte length (-1 for null) followed by UTF-8. A transaction's amount is its product's price.
+ */
+final class SettlementExport {
+    enum Format {
+        CSV(".csv"),
+        BINARY(".bin");
+
+        final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    /** What an export wrote. */
+    static final class Result {
+        final Path file;
+        final int rows; // Store rows covered, included or not
+        final long transactions;
+        final long failed;
+        final long amount; // Settled, in minor units
+        final long bytes;
+
+        Result(Path file, int rows, long transactions, long failed, long amount, long bytes) {
+            this.file = file;
+            this.rows = rows;
+            this.transactions = transactions;
+            this.failed = failed;
+            this.amount = amount;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final long MAGIC = 0x5047534554543031L; // "PGSETT01"
+    private static final int VERSION = 1;
+    private static final int BINARY_GROUP_BYTES = 1 + 4 + 8 + 8 + 8;
+    private static final int BINARY_ROW_BYTES = 4 + 4 + 8 + 1;
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int MAX_BUFFER_BYTES = 64 * 1024;
+    private static final int RANGE_BUFFER_BUDGET = 4 * 1024 * 1024; // Per range being written
+    private static final byte[] CSV_HEADER = utf8(
+            "record,payment_method,product,unit_price,transaction_id,user_id,time,status,amount,transactions,failed\n");
+    private static final byte[] TRANSACTION = utf8("transaction,");
+    private static final byte[] SUCCEEDED = utf8("SUCCEEDED");
+    private static final byte[] FAILED = utf8("FAILED");
+    private static final int TIME_BYTES = 24; // 2026-01-31T23:59:59.999Z
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private final PaymentGateway gateway;
+    private final Path directory;
+    private final int parallelism;
+
+    SettlementExport(PaymentGateway gateway, Path directory, int parallelism) {
+        this.gateway = gateway;
+        this.directory = directory;
+        this.parallelism = parallelism;
+    }
+
+    static SettlementExport fromSystemProperties(PaymentGateway gateway) {
+        return new SettlementExport(gateway, Paths.get(System.getProperty("gateway.settlement.dir", "settlements")),
+                Integer.getInteger("gateway.settlement.parallelism", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Writes the transactions timestamped in [fromMillis, toMillis) to a new file in the settlement directory, named
+     * after the time the export started. One export runs at a time.
+     */
+    synchronized Result export(Format format, long fromMillis, long toMillis) throws IOException {
+        String name = "settlement-" + FILE_TIME.format(Instant.now()) + format.suffix;
+        Files.createDirectories(directory);
+        Path target = directory.resolve(name);
+        Path temp = directory.resolve(name + ".tmp");
+        Result result;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            result = new Run(format, fromMillis, toMillis, channel).write(target);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return result;
+    }
+
+    // One export: the view it covers, the groups it found and where each range writes them
+    private final class Run {
+        final boolean csv;
+        final long from;
+        final long to;
+        final FileChannel channel;
+        final TransactionStore store;
+        final int rows;
+        final BitSet present = new BitSet();
+        final int productCount;
+        final int methodCount;
+        final int rangeRows;
+        final int ranges;
+        final byte[][] methodCells; // CSV: escaped name and comma, by method id
+        final byte[][] productCells; // CSV: escaped name, unit price and commas, by product id
+        final int maxRowBytes;
+        final long[][] offsets; // By range, then group: bytes after pass one, file positions for pass two
+        final long[] transactions; // By group
+        final long[] failed;
+        final long[] amounts;
+        int bufferBytes;
+
+        Run(Format format, long from, long to, FileChannel channel) {
+            this.csv = format == Format.CSV;
+            this.from = from;
+            this.to = to;
+            this.channel = channel;
+            // Read the size first: every row below it belongs to a user already registered, and products and
+            // methods are interned before a row refers to them
+            store = gateway.transactionStore();
+            rows = store.size();
+            for (User user : gateway.users()) {
+                present.set(user.id);
+            }
+            productCount = gateway.productCount();
+            methodCount = store.methodCount();
+
+            int chunks = (rows + TransactionStore.CHUNK_SIZE - 1) >>> TransactionStore.CHUNK_BITS;
+            int chunksPerRange = Math.max(1, (chunks + parallelism * RANGES_PER_THREAD - 1)
+                    / (parallelism * RANGES_PER_THREAD));
+            rangeRows = chunksPerRange << TransactionStore.CHUNK_BITS;
+            ranges = (chunks + chunksPerRange - 1) / chunksPerRange;
+
+            methodCells = new byte[methodCount][];
+            productCells = new byte[productCount][];
+            int widest = 0;
+            for (int id = 0; id < methodCount; id++) {
+                String method = store.methodName((byte) id);
+                methodCells[id] = utf8(csvCell(method != null ? method : "") + ",");
+                widest = Math.max(widest, methodCells[id].length);
+            }
+            int widestProduct = 0;
+            for (int id = 0; id < productCount; id++) {
+                Product product = gateway.getProduct(id);
+                productCells[id] = utf8(csvCell(product.name) + "," + money(TransactionStore.toMinorUnits(
+                        product.price)) + ",");
+                widestProduct = Math.max(widestProduct, productCells[id].length);
+            }
+            // Ids, amount and status at their widest
+            maxRowBytes = csv ? TRANSACTION.length + widest + widestProduct + 11 + 11 + TIME_BYTES + 1
+                    + SUCCEEDED.length + 1 + 22 + 3 : BINARY_ROW_BYTES;
+
+            int groups = methodCount * productCount;
+            offsets = new long[ranges][groups];
+            transactions = new long[groups];
+            failed = new long[groups];
+            amounts = new long[groups];
+        }
+
+        Result write(Path target) throws IOException {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                run(pool, this::count);
+                long size = layOut();
+                run(pool, this::writeRange);
+                long total = 0;
+                long totalFailed = 0;
+                long totalAmount = 0;
+                for (int group = 0; group < transactions.length; group++) {
+                    total += transactions[group];
+                    totalFailed += failed[group];
+                    totalAmount += amounts[group];
+                }
+                return new Result(target, rows, total, totalFailed, totalAmount, size);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        private boolean included(int row) {
+            long timestamp = store.timestamp(row);
+            return timestamp >= from && timestamp < to && present.get(store.userId(row));
+        }
+
+        private int group(int row) {
+            return (store.method(row) & 0xFF) * productCount + store.productId(row);
+        }
+
+        // Pass one: each group's bytes in the range, and its totals
+        private void count(int range) {
+            long[] bytes = offsets[range];
+            int groups = bytes.length;
+            long[] rangeTransactions = new long[groups];
+            long[] rangeFailed = new long[groups];
+            long[] rangeAmounts = new long[groups];
+            int end = Math.min(rows, (range + 1) * rangeRows);
+            for (int row = range * rangeRows; row < end; row++) {
+                if (!included(row)) {
+                    continue;
+                }
+                int group = group(row);
+                rangeTransactions[group]++;
+                if (store.status(row) == TransactionStore.SUCCEEDED) {
+                    rangeAmounts[group] += store.amount(row);
+                } else {
+                    rangeFailed[group]++;
+                }
+                bytes[group] += csv ? csvRowBytes(row, group) : BINARY_ROW_BYTES;
+            }
+            synchronized (this) {
+                for (int group = 0; group < groups; group++) {
+                    transactions[group] += rangeTransactions[group];
+                    failed[group] += rangeFailed[group];
+                    amounts[group] += rangeAmounts[group];
+                }
+            }
+        }
+
+        // Orders the groups, turns the byte counts into each range's file position per group, and writes
+        // everything but the transaction rows. Returns the file size
+        private long layOut() throws IOException {
+            List<Integer> groups = new ArrayList<>();
+            for (int group = 0; group < transactions.length; group++) {
+                if (transactions[group] > 0) {
+                    groups.add(group);
+                }
+            }
+            Comparator<Integer> byMethod = Comparator.comparing(
+                    group -> store.methodName((byte) (group / productCount)),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+            groups.sort(byMethod.thenComparing(group -> gateway.getProduct(group % productCount).name)
+                    .thenComparingDouble(group -> gateway.getProduct(group % productCount).price));
+
+            long position = writeAt(header(groups.size()), 0);
+            for (int group : groups) {
+                if (!csv) {
+                    ByteBuffer prefix = ByteBuffer.allocate(BINARY_GROUP_BYTES);
+                    prefix.put((byte) (group / productCount)).putInt(group % productCount)
+                            .putLong(transactions[group]).putLong(failed[group]).putLong(amounts[group]).flip();
+                    position = writeAt(prefix, position);
+                }
+                for (long[] range : offsets) {
+                    long bytes = range[group];
+                    range[group] = position;
+                    position += bytes;
+                }
+                if (csv) {
+                    ByteBuffer total = ByteBuffer.allocate(maxRowBytes);
+                    total.put(utf8("total,")).put(methodCells[group / productCount])
+                            .put(productCells[group % productCount]).put(utf8(",,,,"));
+                    putTotals(total, amounts[group], transactions[group], failed[group]);
+                    position = writeAt(total.flip(), position);
+                }
+            }
+
+            long total = 0;
+            long totalFailed = 0;
+            long totalAmount = 0;
+            for (int group : groups) {
+                total += transactions[group];
+                totalFailed += failed[group];
+                totalAmount += amounts[group];
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(csv ? 64 + 3 * 22 : 24);
+            if (csv) {
+                trailer.put(utf8("total,,,,,,,,"));
+                putTotals(trailer, totalAmount, total, totalFailed);
+            } else {
+                trailer.putLong(total).putLong(totalFailed).putLong(totalAmount);
+            }
+            position = writeAt(trailer.flip(), position);
+            bufferBytes = Math.max(2 * maxRowBytes, Math.min(MAX_BUFFER_BYTES,
+                    RANGE_BUFFER_BUDGET / Math.max(1, groups.size())));
+            return position;
+        }
+
+        private ByteBuffer header(int groups) throws IOException {
+            if (csv) {
+                return ByteBuffer.wrap(CSV_HEADER);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(from);
+            out.writeLong(to);
+            out.writeLong(rows);
+            out.writeInt(methodCount);
+            for (int id = 0; id < methodCount; id++) {
+                writeString(out, store.methodName((byte) id));
+            }
+            out.writeInt(productCount);
+            for (int id = 0; id < productCount; id++) {
+                Product product = gateway.getProduct(id);
+                writeString(out, product.name);
+                out.writeLong(TransactionStore.toMinorUnits(product.price));
+            }
+            out.writeInt(groups);
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        // Pass two: formats the range's rows, each group into its own buffer, and writes them in place
+        private void writeRange(int range) throws IOException {
+            long[] positions = offsets[range];
+            ByteBuffer[] buffers = new ByteBuffer[positions.length];
+            int end = Math.min(rows, (range + 1) * rangeRows);
+            for (int row = range * rangeRows; row < end; row++) {
+                if (!included(row)) {
+                    continue;
+                }
+                int group = group(row);
+                ByteBuffer buffer = buffers[group];
+                if (buffer == null) {
+                    buffer = buffers[group] = ByteBuffer.allocate(bufferBytes);
+                } else if (buffer.remaining() < maxRowBytes) {
+                    positions[group] = writeAt(buffer.flip(), positions[group]);
+                    buffer.clear();
+                }
+                if (csv) {
+                    putCsvRow(buffer, row, group);
+                } else {
+                    buffer.putInt(row).putInt(store.userId(row)).putLong(store.timestamp(row))
+                            .put(store.status(row));
+                }
+            }
+            for (int group = 0; group < buffers.length; group++) {
+                if (buffers[group] != null) {
+                    positions[group] = writeAt(buffers[group].flip(), positions[group]);
+                }
+            }
+        }
+
+        private int csvRowBytes(int row, int group) {
+            return TRANSACTION.length + methodCells[group / productCount].length
+                    + productCells[group % productCount].length + digits(row) + 1 + digits(store.userId(row)) + 1
+                    + TIME_BYTES + 1 + (store.status(row) == TransactionStore.SUCCEEDED ? SUCCEEDED : FAILED).length
+                    + 1 + moneyBytes(store.amount(row)) + 3;
+        }
+
+        private void putCsvRow(ByteBuffer out, int row, int group) {
+            out.put(TRANSACTION).put(methodCells[group / productCount]).put(productCells[group % productCount]);
+            putNumber(out, row);
+            out.put((byte) ',');
+            putNumber(out, store.userId(row));
+            out.put((byte) ',');
+            putTime(out, store.timestamp(row));
+            out.put((byte) ',');
+            out.put(store.status(row) == TransactionStore.SUCCEEDED ? SUCCEEDED : FAILED);
+            out.put((byte) ',');
+            putMoney(out, store.amount(row));
+            out.put((byte) ',').put((byte) ',').put((byte) '\n');
+        }
+
+        private void putTotals(ByteBuffer out, long amount, long transactions, long failed) {
+            putMoney(out, amount);
+            out.put((byte) ',');
+            putNumber(out, transactions);
+            out.put((byte) ',');
+            putNumber(out, failed);
+            out.put((byte) '\n');
+        }
+
+        private long writeAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return position;
+        }
+
+        // Runs the pass over every range, splitting the ranges in halves down to one per task
+        private void run(ForkJoinPool pool, RangeAction action) throws IOException {
+            if (ranges == 0) {
+                return;
+            }
+            try {
+                pool.invoke(new RangeTask(action, 0, ranges));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private interface RangeAction {
+        void run(int range) throws IOException;
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeAction action;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeAction action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    action.run(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(action, from, middle), new RangeTask(action, middle, to));
+        }
+    }
+
+    // Quoted when it holds a comma, quote or line break, with quotes doubled
+    private static String csvCell(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String money(long amount) {
+        ByteBuffer out = ByteBuffer.allocate(moneyBytes(amount));
+        putMoney(out, amount);
+        return new String(out.array(), StandardCharsets.US_ASCII);
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    // Minor units as major units with two decimals; amounts are never negative
+    private static int moneyBytes(long amount) {
+        return digits(amount / 100) + 3;
+    }
+
+    private static void putMoney(ByteBuffer out, long amount) {
+        putNumber(out, amount / 100);
+        int cents = (int) (amount % 100);
+        out.put((byte) '.').put((byte) ('0' + cents / 10)).put((byte) ('0' + cents % 10));
+    }
+
+    private static void putNumber(ByteBuffer out, long value) {
+        int end = out.position() + digits(value);
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+
+    // yyyy-MM-ddTHH:mm:ss.SSSZ in UTC, for years 0 to 9999, without allocating
+    private static void putTime(ByteBuffer out, long millis) {
+        long days = Math.floorDiv(millis, 86_400_000L);
+        int ofDay = (int) Math.floorMod(millis, 86_400_000L);
+        // Civil date from days since the epoch, in 400-year eras starting on March 1 (H. Hinnant)
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        putDigits(out, year, 4);
+        out.put((byte) '-');
+        putDigits(out, month, 2);
+        out.put((byte) '-');
+        putDigits(out, day, 2);
+        out.put((byte) 'T');
+        putDigits(out, ofDay / 3_600_000, 2);
+        out.put((byte) ':');
+        putDigits(out, ofDay / 60_000 % 60, 2);
+        out.put((byte) ':');
+        putDigits(out, ofDay / 1000 % 60, 2);
+        out.put((byte) '.');
+        putDigits(out, ofDay % 1000, 3);
+        out.put((byte) 'Z');
+    }
+
+    private static void putDigits(ByteBuffer out, int value, int width) {
+        int end = out.position() + width;
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
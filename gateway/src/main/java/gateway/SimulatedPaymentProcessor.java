@@ -0,0 +1,71 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * A stand-in acquirer for development and load tests. Answers arrive after a log-normal delay, so most are quick
+ * and a few are very slow, as with a real acquirer; a timer thread completes them, so nothing blocks while waiting.
+ *
+ * Configured with -Dgateway.processor.*: latencyMedianMs (default 150) and latencyP99Ms (1500) shape the delay, and
+ * a latency median of 0 answers at once. declineRate (0.05) is the share of payments declined, errorRate (0.01) the
+ * share of attempts that fail with an error, and hangRate (0) the share that never answer at all.
+ */
+final class SimulatedPaymentProcessor implements PaymentProcessor {
+    private static final double Z_99 = 2.3263; // Standard normal 99th percentile
+    private static final long MAX_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final double medianNanos;
+    private final double sigma;
+    private final double hangRate;
+    private final double errorRate;
+    private final double declineRate;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "simulated-processor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SimulatedPaymentProcessor(double medianMillis, double p99Millis, double declineRate, double errorRate,
+            double hangRate) {
+        this.medianNanos = medianMillis * 1e6;
+        this.sigma = medianMillis > 0 && p99Millis > medianMillis ? Math.log(p99Millis / medianMillis) / Z_99 : 0;
+        this.declineRate = declineRate;
+        this.errorRate = errorRate;
+        this.hangRate = hangRate;
+    }
+
+    static SimulatedPaymentProcessor fromSystemProperties() {
+        return new SimulatedPaymentProcessor(
+                Double.parseDouble(System.getProperty("gateway.processor.latencyMedianMs", "150")),
+                Double.parseDouble(System.getProperty("gateway.processor.latencyP99Ms", "1500")),
+                Double.parseDouble(System.getProperty("gateway.processor.declineRate", "0.05")),
+                Double.parseDouble(System.getProperty("gateway.processor.errorRate", "0.01")),
+                Double.parseDouble(System.getProperty("gateway.processor.hangRate", "0")));
+    }
+
+    @Override
+    public CompletableFuture<Authorization> authorize(Payment payment) {
+        CompletableFuture<Authorization> result = new CompletableFuture<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double roll = random.nextDouble();
+        if (roll < hangRate) {
+            return result; // Left to the caller's timeout
+        }
+        Runnable answer;
+        if (roll < hangRate + errorRate) {
+            answer = () -> result.completeExceptionally(new IOException("Simulated acquirer error"));
+        } else if (roll < hangRate + errorRate + declineRate) {
+            answer = () -> result.complete(Authorization.declined("Declined by issuer"));
+        } else {
+            answer = () -> result.complete(Authorization.APPROVED);
+        }
+        if (medianNanos <= 0) {
+            answer.run();
+        } else {
+            long delay = (long) Math.min(medianNanos * Math.exp(sigma * random.nextGaussian()), MAX_DELAY_NANOS);
+            timer.schedule(answer, delay, TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
+}
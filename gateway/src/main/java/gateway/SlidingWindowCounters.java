@@ -0,0 +1,218 @@
+package gateway;
+
+/**
+ * Per-key sums over a sliding time window, in primitive arrays. The window is split into a fixed number of buckets
+ * and each key keeps one value per bucket, tagged with the bucket's epoch; a key's sum covers the buckets of the
+ * last window, so the window slides a bucket at a time and holds between (buckets - 1) / buckets and all of it.
+ *
+ * Keys are 64-bit hashes, mixed and kept in open-addressing tables with linear probing: one per stripe, each guarded
+ * by its own monitor. A table starts small and doubles up to its share of maxKeys. A full table drops the keys
+ * whose buckets have all expired, at most once per bucket; keys that still do not fit share one overflow row per
+ * stripe, so, as with RateLimiter, a flood of new keys is counted together rather than forgotten.
+ */
+final class SlidingWindowCounters {
+    private static final int STRIPE_BITS = 6;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int buckets;
+    private final long bucketNanos;
+    private final int maxCapacity; // Per stripe
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    private final class Stripe {
+        long[] keys = new long[INITIAL_CAPACITY]; // 0 marks a free slot
+        int[] epochs = new int[INITIAL_CAPACITY * buckets]; // Row i holds buckets [i * buckets, (i + 1) * buckets)
+        long[] values = new long[INITIAL_CAPACITY * buckets];
+        final int[] overflowEpochs = new int[buckets];
+        final long[] overflowValues = new long[buckets];
+        int size;
+        int sweptEpoch;
+    }
+
+    SlidingWindowCounters(long windowNanos, int buckets, int maxKeys) {
+        this.buckets = buckets;
+        this.bucketNanos = Math.max(1, windowNanos / buckets);
+        this.maxCapacity = Math.max(INITIAL_CAPACITY,
+                Integer.highestOneBit(Math.max(1, (int) (maxKeys / 0.75) >> STRIPE_BITS) - 1) << 1);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** A well-spread, non-zero key for a string, such as a card number; only the hash is kept. */
+    static long key(String value) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return key(hash);
+    }
+
+    /** A well-spread, non-zero key for a number, such as a user id. */
+    static long key(long value) {
+        long hash = value ^ 0x9e3779b97f4a7c15L; // murmur3 finalizer
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /** The key's sum over the window. */
+    long get(long key) {
+        int epoch = epoch();
+        Stripe stripe = stripes[(int) (key >>> (64 - STRIPE_BITS))];
+        synchronized (stripe) {
+            int row = find(stripe, key);
+            if (row >= 0) {
+                return sum(stripe.epochs, stripe.values, row * buckets, epoch);
+            }
+            return isFull(stripe) ? sum(stripe.overflowEpochs, stripe.overflowValues, 0, epoch) : 0;
+        }
+    }
+
+    /** Adds delta to the key's current bucket and returns the key's sum over the window, delta included. */
+    long add(long key, long delta) {
+        return addIfWithin(key, delta, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds delta unless the key's sum over the window would then exceed limit. Returns the sum including delta, or
+     * -1 when nothing was added.
+     */
+    long addIfWithin(long key, long delta, long limit) {
+        int epoch = epoch();
+        Stripe stripe = stripes[(int) (key >>> (64 - STRIPE_BITS))];
+        synchronized (stripe) {
+            int[] epochs = stripe.overflowEpochs;
+            long[] values = stripe.overflowValues;
+            int base = 0;
+            int row = insert(stripe, key, epoch);
+            if (row >= 0) {
+                epochs = stripe.epochs;
+                values = stripe.values;
+                base = row * buckets;
+            }
+            long sum = sum(epochs, values, base, epoch) + delta;
+            if (sum > limit) {
+                return -1;
+            }
+            int bucket = base + Math.floorMod(epoch, buckets);
+            if (epochs[bucket] != epoch) {
+                epochs[bucket] = epoch;
+                values[bucket] = 0;
+            }
+            values[bucket] += delta;
+            return sum;
+        }
+    }
+
+    /** Keys tracked in their own rows. */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    private int epoch() {
+        return (int) (System.nanoTime() / bucketNanos); // Wraps after 2^31 buckets; only differences are used
+    }
+
+    private long sum(int[] epochs, long[] values, int base, int epoch) {
+        long sum = 0;
+        for (int i = base; i < base + buckets; i++) {
+            int age = epoch - epochs[i];
+            if (age >= 0 && age < buckets) {
+                sum += values[i];
+            }
+        }
+        return sum;
+    }
+
+    private static int find(Stripe stripe, long key) {
+        long[] keys = stripe.keys;
+        int mask = keys.length - 1;
+        for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private boolean isFull(Stripe stripe) {
+        return stripe.size + 1 > stripe.keys.length * 3 / 4;
+    }
+
+    // The key's row, added if needed, or -1 when the key must use the overflow row
+    private int insert(Stripe stripe, long key, int epoch) {
+        int row = find(stripe, key);
+        if (row >= 0) {
+            return row;
+        }
+        if (isFull(stripe)) {
+            if (stripe.keys.length < maxCapacity) {
+                rebuild(stripe, stripe.keys.length * 2, epoch);
+            } else if (stripe.sweptEpoch != epoch) {
+                stripe.sweptEpoch = epoch;
+                rebuild(stripe, stripe.keys.length, epoch);
+            }
+            if (isFull(stripe)) {
+                return -1;
+            }
+        }
+        long[] keys = stripe.keys;
+        int mask = keys.length - 1;
+        int i = (int) key & mask;
+        while (keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        stripe.size++;
+        return i;
+    }
+
+    // Rehashes the stripe into tables of the given capacity, leaving out keys with nothing left in the window
+    private void rebuild(Stripe stripe, int capacity, int epoch) {
+        long[] oldKeys = stripe.keys;
+        int[] oldEpochs = stripe.epochs;
+        long[] oldValues = stripe.values;
+        long[] keys = new long[capacity];
+        int[] epochs = new int[capacity * buckets];
+        long[] values = new long[capacity * buckets];
+        int mask = capacity - 1;
+        int size = 0;
+        for (int row = 0; row < oldKeys.length; row++) {
+            if (oldKeys[row] == 0 || isIdle(oldEpochs, row * buckets, epoch)) {
+                continue;
+            }
+            int i = (int) oldKeys[row] & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[row];
+            System.arraycopy(oldEpochs, row * buckets, epochs, i * buckets, buckets);
+            System.arraycopy(oldValues, row * buckets, values, i * buckets, buckets);
+            size++;
+        }
+        stripe.keys = keys;
+        stripe.epochs = epochs;
+        stripe.values = values;
+        stripe.size = size;
+    }
+
+    private boolean isIdle(int[] epochs, int base, int epoch) {
+        for (int i = base; i < base + buckets; i++) {
+            int age = epoch - epochs[i];
+            if (age >= 0 && age < buckets) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+package gateway;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The web UI, served from memory. Every file under -Dgateway.static.dir (default public) is read once into an
+ * immutable Asset holding its bytes, a gzip copy when compressing makes it smaller, and a strong ETag for each, so
+ * a request is a map lookup and one write of a body whose length is known up front. The gzip copy is sent to
+ * clients whose Accept-Encoding allows it, under its own ETag, and both carry Vary: Accept-Encoding.
+ *
+ * Responses carry Cache-Control: no-cache, so browsers keep the files but revalidate them and get 304 while they
+ * are current; -Dgateway.static.maxAgeSeconds lets them skip that for a while instead. The directory is watched:
+ * after a change has settled, every file is read again and the new set replaces the old one in a single write, so a
+ * request sees either the old files or the new ones. If reading fails part way, the old set stays until the next
+ * change. Hidden files and files over -Dgateway.static.maxFileBytes (default 8 MiB) are left out.
+ */
+final class StaticFiles {
+    /** One file, ready to send. */
+    static final class Asset {
+        final String contentType;
+        final byte[] identity;
+        final byte[] gzip; // Null when compressing does not make it smaller
+        final String etag;
+        final String gzipEtag;
+
+        Asset(String contentType, byte[] identity, byte[] gzip, String etag) {
+            this.contentType = contentType;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.etag = etag;
+            this.gzipEtag = gzip != null ? etag.substring(0, etag.length() - 1) + "-gzip\"" : null;
+        }
+    }
+
+    private static final long SETTLE_MILLIS = 100;
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("json", "application/json; charset=utf-8"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff2", "font/woff2"));
+
+    private final Path root;
+    private final long maxFileBytes;
+    private final String cacheControl;
+    private volatile Map<String, Asset> assets = Map.of(); // By request path
+    private WatchService watcher; // Only used by load(), on the constructor's thread and then the watcher's
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    StaticFiles(Path root, long maxFileBytes, long maxAgeSeconds) {
+        this.root = root;
+        this.maxFileBytes = maxFileBytes;
+        this.cacheControl = maxAgeSeconds > 0 ? "public, max-age=" + maxAgeSeconds : "no-cache";
+    }
+
+    /** The files in -Dgateway.static.dir, loaded and watched, or null when there is no such directory. */
+    static StaticFiles fromSystemProperties() {
+        Path root = Paths.get(System.getProperty("gateway.static.dir", "public")).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            return null;
+        }
+        StaticFiles files = new StaticFiles(root, Long.getLong("gateway.static.maxFileBytes", 8L * 1024 * 1024),
+                Long.getLong("gateway.static.maxAgeSeconds", 0));
+        try {
+            files.watch();
+        } catch (IOException e) {
+            GatewayLog.warn("static.unwatched", "dir", root, "error", e);
+        }
+        try {
+            files.load();
+        } catch (IOException | UncheckedIOException e) {
+            GatewayLog.warn("static.load-failed", "dir", root, "error", e);
+        }
+        return files;
+    }
+
+    /** Reads every file again and publishes them. */
+    void load() throws IOException {
+        Map<String, Asset> loaded = new HashMap<>();
+        long bytes = 0;
+        long gzipBytes = 0;
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (!path.equals(root) && path.getFileName().toString().startsWith(".")) {
+                    continue;
+                }
+                if (Files.isDirectory(path)) {
+                    if (watcher != null) {
+                        path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    }
+                    continue;
+                }
+                if (!Files.isRegularFile(path) || Files.size(path) > maxFileBytes) {
+                    continue;
+                }
+                Asset asset = read(path);
+                StringBuilder requestPath = new StringBuilder();
+                for (Path name : root.relativize(path)) {
+                    requestPath.append('/').append(name);
+                }
+                loaded.put(requestPath.toString(), asset);
+                bytes += asset.identity.length;
+                gzipBytes += asset.gzip != null ? asset.gzip.length : asset.identity.length;
+            }
+        }
+        assets = Map.copyOf(loaded);
+        GatewayLog.info("static.loaded", "dir", root, "files", loaded.size(), "bytes", bytes, "gzipBytes", gzipBytes);
+    }
+
+    private static Asset read(Path path) throws IOException {
+        byte[] identity = Files.readAllBytes(path);
+        String name = path.getFileName().toString();
+        String contentType = CONTENT_TYPES.getOrDefault(
+                name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT), "application/octet-stream");
+        byte[] gzip = gzip(identity);
+        return new Asset(contentType, identity, gzip.length < identity.length ? gzip : null,
+                ProductCatalog.etagOf(identity));
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        // Compressed once per change, so spend the time on the smallest output
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    // Loads again whenever the directory changes, once events have stopped arriving for SETTLE_MILLIS: saving a
+    // file is often several writes, or a write and a rename
+    private void watch() throws IOException {
+        watcher = root.getFileSystem().newWatchService();
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    do {
+                        key.pollEvents();
+                        key.reset();
+                    } while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                    try {
+                        load();
+                        reloads.increment();
+                    } catch (IOException | UncheckedIOException e) {
+                        GatewayLog.warn("static.reload-failed", "dir", root, "error", e);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }, "static-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Answers GET and HEAD for the files; a path ending in / means its index.html. */
+    void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        Asset asset = assets.get(path.endsWith("/") ? path + "index.html" : path);
+        if (asset == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        boolean gzip = asset.gzip != null && acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        headers.set("Content-Type", asset.contentType);
+        headers.set("Cache-Control", cacheControl);
+        headers.set("ETag", etag);
+        if (asset.gzip != null) {
+            headers.set("Vary", "Accept-Encoding");
+        }
+        if (Main.etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            notModified.increment();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = gzip ? asset.gzip : asset.identity;
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+        }
+        if (head) {
+            // The server sends no body for HEAD and leaves Content-Length to the handler
+            headers.set("Content-Length", Integer.toString(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Accept-Encoding lists codings, each with an optional q-value; gzip is acceptable when it is listed, or else
+    // covered by *, with a q-value above 0
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.regionMatches(true, 0, "q=", 0, 2)) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            String name = params[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzip = q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    int fileCount() {
+        return assets.size();
+    }
+
+    long reloadCount() {
+        return reloads.sum();
+    }
+
+    long notModifiedCount() {
+        return notModified.sum();
+    }
+}
@@ -0,0 +1,20 @@
+package gateway;
+
+// Read-only view of one TransactionStore row
+class Transaction {
+    int id; // Row index in the TransactionStore, used as the pagination cursor
+    int userId;
+    Product product;
+    long amount; // Minor units
+    boolean successful;
+    long timestamp;
+
+    Transaction(int id, int userId, Product product, long amount, boolean successful, long timestamp) {
+        this.id = id;
+        this.userId = userId;
+        this.product = product;
+        this.amount = amount;
+        this.successful = successful;
+        this.timestamp = timestamp;
+    }
+}
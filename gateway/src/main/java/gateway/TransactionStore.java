@@ -0,0 +1,182 @@
+package gateway;
+
+import java.util.*;
+
+/**
+ * Append-only, column-oriented log of every payment.
+ *
+ * Each transaction is a row index into primitive columns: owner user id, interned product id, the payment method it
+ * was charged to, amount in minor units (cents), a status byte, a timestamp and the index of the same user's previous
+ * transaction. The last column chains each user's history newest-first from User.lastTransaction, so per-user
+ * iteration never scans other users' rows. Payment methods are interned here into byte ids, 0 meaning none; names
+ * past the 255th distinct one are recorded as none.
+ *
+ * Columns are split into fixed 64K-row chunks allocated on demand, so growth never copies existing rows and heap use
+ * is BYTES_PER_TRANSACTION per row (about 3 GB for 100M transactions), rounded up to a whole chunk. The store
+ * refuses appends past -Dgateway.transactions.capacity.
+ *
+ * Appends are serialized on the store; readers only need the volatile size to see every row below it.
+ */
+final class TransactionStore {
+    static final byte FAILED = 0;
+    static final byte SUCCEEDED = 1;
+    static final int NONE = -1;
+    static final int BYTES_PER_TRANSACTION = 4 + 4 + 1 + 8 + 1 + 8 + 4;
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_METHODS = 256;
+
+    private final int capacity;
+    private final int[][] userIds;
+    private final int[][] productIds;
+    private final byte[][] methods;
+    private final long[][] amounts;
+    private final byte[][] statuses;
+    private final long[][] timestamps;
+    private final int[][] previous;
+    private volatile String[] methodNames = { null }; // By method id; only grows
+    private int allocatedChunks; // Guarded by this
+    private volatile int size;
+
+    TransactionStore(int capacity) {
+        this.capacity = capacity;
+        int chunks = (int) (((long) capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        userIds = new int[chunks][];
+        productIds = new int[chunks][];
+        methods = new byte[chunks][];
+        amounts = new long[chunks][];
+        statuses = new byte[chunks][];
+        timestamps = new long[chunks][];
+        previous = new int[chunks][];
+    }
+
+    static TransactionStore fromSystemProperties() {
+        return new TransactionStore(Integer.getInteger("gateway.transactions.capacity", Integer.MAX_VALUE));
+    }
+
+    /**
+     * Appends a row and returns its index. previous is the user's prior lastTransaction, or NONE; method is an id
+     * from methodId.
+     */
+    synchronized int append(int userId, int previousIndex, int productId, byte method, long amount, byte status,
+            long timestamp) {
+        int index = size;
+        if (index >= capacity) {
+            throw new IllegalStateException("Transaction store is full (" + capacity + " transactions)");
+        }
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk == allocatedChunks) {
+            userIds[chunk] = new int[CHUNK_SIZE];
+            productIds[chunk] = new int[CHUNK_SIZE];
+            methods[chunk] = new byte[CHUNK_SIZE];
+            amounts[chunk] = new long[CHUNK_SIZE];
+            statuses[chunk] = new byte[CHUNK_SIZE];
+            timestamps[chunk] = new long[CHUNK_SIZE];
+            previous[chunk] = new int[CHUNK_SIZE];
+            allocatedChunks++;
+        }
+        int offset = index & CHUNK_MASK;
+        userIds[chunk][offset] = userId;
+        productIds[chunk][offset] = productId;
+        methods[chunk][offset] = method;
+        amounts[chunk][offset] = amount;
+        statuses[chunk][offset] = status;
+        timestamps[chunk][offset] = timestamp;
+        previous[chunk][offset] = previousIndex;
+        size = index + 1; // Publishes the row to lock-free readers
+        return index;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int userId(int index) {
+        return userIds[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    int productId(int index) {
+        return productIds[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /** The payment method id of a row; see methodName. */
+    byte method(int index) {
+        return methods[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    long amount(int index) {
+        return amounts[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    byte status(int index) {
+        return statuses[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    long timestamp(int index) {
+        return timestamps[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    int previous(int index) {
+        return previous[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    /** The id of a payment method name, interned on first use; 0 for null. Lookups take no lock. */
+    byte methodId(String name) {
+        if (name == null) {
+            return 0;
+        }
+        int id = findMethod(methodNames, name);
+        if (id > 0) {
+            return (byte) id;
+        }
+        synchronized (this) {
+            String[] names = methodNames;
+            id = findMethod(names, name);
+            if (id > 0) {
+                return (byte) id;
+            }
+            if (names.length == MAX_METHODS) {
+                return 0;
+            }
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = name;
+            methodNames = grown;
+            return (byte) names.length;
+        }
+    }
+
+    // The name's id, or 0 when it has none yet
+    private static int findMethod(String[] names, String name) {
+        for (int id = 1; id < names.length; id++) {
+            if (names[id].equals(name)) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /** The payment method name behind an id from method(), or null for none. */
+    String methodName(byte id) {
+        return methodNames[id & 0xFF];
+    }
+
+    /** Payment method ids in use are below this, 0 included. Rows below size() only use ids below the count. */
+    int methodCount() {
+        return methodNames.length;
+    }
+
+    /** Heap currently held by the columns. */
+    synchronized long memoryBytes() {
+        return (long) allocatedChunks * CHUNK_SIZE * BYTES_PER_TRANSACTION;
+    }
+
+    static long toMinorUnits(double price) {
+        return Math.round(price * 100);
+    }
+
+    static double fromMinorUnits(long amount) {
+        return amount / 100.0;
+    }
+}
@@ -0,0 +1,30 @@
+package gateway;
+
+class User {
+    int id;
+    String username;
+    String passwordHash; // PasswordHasher encoding, never the password itself
+    String paymentMethod;
+    String cardNumber;
+    String cardExpiry;
+    String cardCVV;
+    String bankAccount;
+    String upiId;
+    int lastTransaction; // Newest row in the TransactionStore, the head of this user's history
+    int transactionCount;
+    long lastLsn; // Highest journal record applied to this user; replay skips records a snapshot already holds
+    int pendingPayments; // Accepted by the PaymentPipeline, outcome not yet recorded
+    boolean moved; // Copied to the cluster node that now owns it; nothing may change it here any more
+
+    User(String username, String passwordHash) {
+        this.username = username;
+        this.passwordHash = passwordHash;
+        this.paymentMethod = null;
+        this.cardNumber = null;
+        this.cardExpiry = null;
+        this.cardCVV = null;
+        this.bankAccount = null;
+        this.upiId = null;
+        this.lastTransaction = TransactionStore.NONE;
+    }
+}
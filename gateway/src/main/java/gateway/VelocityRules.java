@@ -0,0 +1,200 @@
+package gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Velocity checks made before a payment is sent to the processor. Each rule keeps a sum per key over a sliding
+ * window in SlidingWindowCounters, so a check is a few hash probes whatever the traffic:
+ *
+ * - instrument: payment attempts with one card, bank account or UPI id (the user, for methods without one), across
+ *   all users, per minute: -Dgateway.velocity.instrumentAttemptsPerMinute (default 10)
+ * - amount: amount a user pays, per hour: -Dgateway.velocity.userAmountPerHour (default 10000)
+ * - batch amount: amount a user pays through /api/payments/batch, per hour:
+ *   -Dgateway.velocity.batchAmountPerHour (default 10000000)
+ * - verification: payments refused because the stored details failed validation, per user over ten minutes;
+ *   reaching -Dgateway.velocity.failedVerificationsPer10Minutes (default 5) blocks the user's payments until the
+ *   window has moved past them
+ *
+ * A limit of 0 turns its rule off. Attempts count whether or not they pass, but an amount is only counted once the
+ * payment passes every rule, so declined payments do not use up the hourly limit. A payment that passes but is then
+ * refused before it reaches the processor (a full pipeline or an open circuit breaker) is taken back with release(),
+ * so a client retrying after Retry-After is not declined for attempts that were never charged. Instruments are kept
+ * as hashes, never as numbers. -Dgateway.velocity.maxKeys (default 262144) bounds the keys each rule tracks.
+ *
+ * A batch is bulk merchant traffic (payouts, renewals) sent with one stored instrument, not a run of attempts to
+ * test a card, so it counts as a single instrument attempt, checked once before its items; and its items are held
+ * to the batch amount limit instead of the per-user one, which would stop a batch of thousands after a handful.
+ * Items past the batch limit are declined one by one, like single payments past the hourly amount.
+ */
+final class VelocityRules {
+    /** Why a payment was stopped: a stable code for clients and a message for the payer. */
+    static final class Decline {
+        final String rule;
+        final String message;
+
+        Decline(String rule, String message) {
+            this.rule = rule;
+            this.message = message;
+        }
+    }
+
+    static final Decline INSTRUMENT = new Decline("instrument_velocity",
+            "Too many payments with this payment method in the last minute");
+    static final Decline AMOUNT = new Decline("amount_velocity", "Spending limit for the last hour reached");
+    static final Decline VERIFICATION = new Decline("failed_verifications",
+            "Too many payments with invalid payment details; try again later");
+
+    private final long maxInstrumentAttempts;
+    private final long maxUserAmount; // Minor units
+    private final long maxBatchAmount; // Minor units
+    private final long maxFailedVerifications;
+    private final SlidingWindowCounters instrumentAttempts;
+    private final SlidingWindowCounters userAmounts;
+    private final SlidingWindowCounters batchAmounts;
+    private final SlidingWindowCounters failedVerifications;
+    private final LongAdder instrumentDeclines = new LongAdder();
+    private final LongAdder amountDeclines = new LongAdder();
+    private final LongAdder verificationDeclines = new LongAdder();
+
+    VelocityRules(long maxInstrumentAttempts, long maxUserAmount, long maxBatchAmount, long maxFailedVerifications,
+            int maxKeys) {
+        this.maxInstrumentAttempts = maxInstrumentAttempts;
+        this.maxUserAmount = maxUserAmount;
+        this.maxBatchAmount = maxBatchAmount;
+        this.maxFailedVerifications = maxFailedVerifications;
+        this.instrumentAttempts = maxInstrumentAttempts > 0
+                ? new SlidingWindowCounters(TimeUnit.MINUTES.toNanos(1), 6, maxKeys) : null;
+        this.userAmounts = maxUserAmount > 0
+                ? new SlidingWindowCounters(TimeUnit.HOURS.toNanos(1), 12, maxKeys) : null;
+        this.batchAmounts = maxBatchAmount > 0
+                ? new SlidingWindowCounters(TimeUnit.HOURS.toNanos(1), 12, maxKeys) : null;
+        this.failedVerifications = maxFailedVerifications > 0
+                ? new SlidingWindowCounters(TimeUnit.MINUTES.toNanos(10), 10, maxKeys) : null;
+    }
+
+    static VelocityRules fromSystemProperties() {
+        return new VelocityRules(
+                Long.getLong("gateway.velocity.instrumentAttemptsPerMinute", 10),
+                TransactionStore.toMinorUnits(
+                        Double.parseDouble(System.getProperty("gateway.velocity.userAmountPerHour", "10000"))),
+                TransactionStore.toMinorUnits(
+                        Double.parseDouble(System.getProperty("gateway.velocity.batchAmountPerHour", "10000000"))),
+                Long.getLong("gateway.velocity.failedVerificationsPer10Minutes", 5),
+                Integer.getInteger("gateway.velocity.maxKeys", 262_144));
+    }
+
+    /** The decline for a user blocked by failed verifications, checked before their details are. */
+    Decline checkUser(User user) {
+        if (failedVerifications != null
+                && failedVerifications.get(SlidingWindowCounters.key(user.id)) >= maxFailedVerifications) {
+            verificationDeclines.increment();
+            return VERIFICATION;
+        }
+        return null;
+    }
+
+    /** Counts a payment refused because the user's stored details did not validate. */
+    void recordFailedVerification(User user) {
+        if (failedVerifications != null) {
+            failedVerifications.add(SlidingWindowCounters.key(user.id), 1);
+        }
+    }
+
+    /**
+     * Counts an attempt to pay amount (minor units) with the user's current payment method, which has validated,
+     * and returns the decline for the first rule it breaks, or null to let it through.
+     */
+    Decline check(User user, String paymentMethod, long amount) {
+        if (instrumentAttempts != null) {
+            if (instrumentAttempts.add(instrumentKey(user, paymentMethod), 1) > maxInstrumentAttempts) {
+                instrumentDeclines.increment();
+                return INSTRUMENT;
+            }
+        }
+        if (userAmounts != null && userAmounts.addIfWithin(SlidingWindowCounters.key(user.id), amount,
+                maxUserAmount) < 0) {
+            amountDeclines.increment();
+            return AMOUNT;
+        }
+        return null;
+    }
+
+    /** Counts the one instrument attempt a batch makes and returns the decline if it breaks the rule, or null. */
+    Decline checkBatch(User user, String paymentMethod) {
+        if (instrumentAttempts != null
+                && instrumentAttempts.add(instrumentKey(user, paymentMethod), 1) > maxInstrumentAttempts) {
+            instrumentDeclines.increment();
+            return INSTRUMENT;
+        }
+        return null;
+    }
+
+    /** Counts a batch item's amount (minor units) against the batch limit, or returns the decline when it is over. */
+    Decline checkBatchItem(User user, long amount) {
+        if (batchAmounts != null && batchAmounts.addIfWithin(SlidingWindowCounters.key(user.id), amount,
+                maxBatchAmount) < 0) {
+            amountDeclines.increment();
+            return AMOUNT;
+        }
+        return null;
+    }
+
+    /**
+     * Takes back what check() counted for a payment it let through that was then not accepted. The counts come off
+     * the current bucket, the one they went into unless a bucket boundary passed in between.
+     */
+    void release(User user, String paymentMethod, long amount) {
+        if (instrumentAttempts != null) {
+            instrumentAttempts.add(instrumentKey(user, paymentMethod), -1);
+        }
+        if (userAmounts != null) {
+            userAmounts.add(SlidingWindowCounters.key(user.id), -amount);
+        }
+    }
+
+    /** Takes back a batch item's amount, for an item checkBatchItem() let through that was then not accepted. */
+    void releaseBatchItem(User user, long amount) {
+        if (batchAmounts != null) {
+            batchAmounts.add(SlidingWindowCounters.key(user.id), -amount);
+        }
+    }
+
+    /** Takes back the attempt checkBatch() counted, for a batch none of whose items were accepted. */
+    void releaseBatch(User user, String paymentMethod) {
+        if (instrumentAttempts != null) {
+            instrumentAttempts.add(instrumentKey(user, paymentMethod), -1);
+        }
+    }
+
+    // The card, account or handle paid with; the user stands in for methods without one
+    private static long instrumentKey(User user, String paymentMethod) {
+        String instrument;
+        synchronized (user) {
+            PaymentMethod method = PaymentMethod.forName(paymentMethod);
+            instrument = method != null ? method.instrument(user) : null;
+        }
+        return SlidingWindowCounters.key(instrument != null ? paymentMethod + ':' + instrument
+                : "user:" + user.username);
+    }
+
+    long instrumentDeclineCount() {
+        return instrumentDeclines.sum();
+    }
+
+    long amountDeclineCount() {
+        return amountDeclines.sum();
+    }
+
+    long verificationDeclineCount() {
+        return verificationDeclines.sum();
+    }
+
+    /** Keys tracked in their own rows, over all rules. */
+    int trackedKeys() {
+        return (instrumentAttempts != null ? instrumentAttempts.size() : 0)
+                + (userAmounts != null ? userAmounts.size() : 0)
+                + (batchAmounts != null ? batchAmounts.size() : 0)
+                + (failedVerifications != null ? failedVerifications.size() : 0);
+    }
+}
@@ -1,5 +1,10 @@
 // Store user data (In a real application, this would be handled by a backend)
+// Same origin when the gateway serves this page; the default local gateway when it is opened from disk
+const API_BASE = location.protocol === 'file:' ? 'http://localhost:8080' : '';
 let currentUser = null;
+let sessionToken = null;
+let transactions = [];
+let nextTransactionCursor = null;
 const users = [];
 const products = [
     { name: 'Laptop', price: 1000.0 },
@@ -42,7 +47,7 @@ async function handleLogin(event) {
     const password = document.getElementById('loginPassword').value;
 
     try {
-        const response = await fetch('http://localhost:8080/api/login', {
+        const response = await fetch(`${API_BASE}/api/login`, {
             method: 'POST',
             headers: {
                 'Content-Type': 'application/json',
@@ -56,6 +61,10 @@ async function handleLogin(event) {
         const data = await response.json();
         if (data.success) {
             currentUser = data.user;
+            sessionToken = data.token;
+            transactions = [];
+            nextTransactionCursor = null;
+            await loadTransactions();
             showDashboard();
         } else {
             alert(data.message || 'Login failed');
@@ -79,7 +88,7 @@ async function handleRegister(event) {
     }
 
     try {
-        const response = await fetch('http://localhost:8080/api/register', {
+        const response = await fetch(`${API_BASE}/api/register`, {
             method: 'POST',
             headers: {
                 'Content-Type': 'application/json',
@@ -110,10 +119,65 @@ async function handleRegister(event) {
 
 // Handle Logout
 function handleLogout() {
+    if (sessionToken) {
+        fetch(`${API_BASE}/api/logout`, {
+            method: 'POST',
+            headers: authHeaders()
+        }).catch(error => console.error('Error during logout:', error));
+    }
     currentUser = null;
+    sessionToken = null;
+    transactions = [];
+    nextTransactionCursor = null;
     showLogin();
 }
 
+// Headers for requests made on behalf of the logged-in user
+function authHeaders() {
+    return {
+        'Content-Type': 'application/json',
+        'Authorization': 'Bearer ' + sessionToken
+    };
+}
+
+// Retries requests that failed to reach the server; only safe for idempotent requests
+async function fetchWithRetry(url, options, attempts = 3) {
+    for (let attempt = 1; ; attempt++) {
+        try {
+            return await fetch(url, options);
+        } catch (error) {
+            if (attempt >= attempts) throw error;
+            await new Promise(resolve => setTimeout(resolve, 500 * attempt));
+        }
+    }
+}
+
+// Load the next page of transaction history (newest first)
+async function loadTransactions() {
+    try {
+        const query = new URLSearchParams({ limit: 20 });
+        if (nextTransactionCursor !== null) {
+            query.set('cursor', nextTransactionCursor);
+        }
+        const response = await fetch(`${API_BASE}/api/transactions?${query}`, {
+            headers: authHeaders()
+        });
+
+        const data = await response.json();
+        if (data.success) {
+            transactions = transactions.concat(data.transactions);
+            nextTransactionCursor = data.nextCursor;
+        }
+    } catch (error) {
+        console.error('Error loading transactions:', error);
+    }
+}
+
+async function loadMoreTransactions() {
+    await loadTransactions();
+    await updateDashboard();
+}
+
 // Update Payment Method
 async function updatePaymentMethod() {
     const paymentMethod = document.getElementById('paymentMethod').value;
@@ -129,9 +193,9 @@ async function updatePaymentMethod() {
         let paymentDetails = {};
         
         if (paymentMethod === 'Credit Card') {
-            const cardNumber = prompt('Enter your card number (16 digits):');
-            if (!cardNumber || !cardNumber.replace(/\s/g, '').match(/^\d{16}$/)) {
-                alert('Invalid card number. Please enter a 16-digit number.');
+            const cardNumber = prompt('Enter your card number:');
+            if (!cardNumber || !cardNumber.replace(/\s/g, '').match(/^\d{12,19}$/)) {
+                alert('Invalid card number. Please enter 12 to 19 digits.');
                 return;
             }
             
@@ -141,9 +205,9 @@ async function updatePaymentMethod() {
                 return;
             }
             
-            const cardCVV = prompt('Enter CVV (3 digits):');
-            if (!cardCVV || !cardCVV.match(/^\d{3}$/)) {
-                alert('Invalid CVV. Please enter a 3-digit number.');
+            const cardCVV = prompt('Enter CVV (3 or 4 digits):');
+            if (!cardCVV || !cardCVV.match(/^\d{3,4}$/)) {
+                alert('Invalid CVV. Please enter a 3 or 4-digit number.');
                 return;
             }
             
@@ -169,14 +233,10 @@ async function updatePaymentMethod() {
         }
         
         // Send payment method update to server
-        const response = await fetch('http://localhost:8080/api/payment-method', {
+        const response = await fetch(`${API_BASE}/api/payment-method`, {
             method: 'POST',
-            headers: {
-                'Content-Type': 'application/json',
-            },
+            headers: authHeaders(),
             body: JSON.stringify({
-                username: currentUser.username,
-                password: prompt('Enter your password to confirm:'),
                 paymentMethod: paymentMethod,
                 ...paymentDetails
             })
@@ -205,7 +265,7 @@ async function updatePaymentMethod() {
 // Load Products
 async function loadProducts() {
     try {
-        const response = await fetch('http://localhost:8080/api/products');
+        const response = await fetch(`${API_BASE}/api/products`);
         const data = await response.json();
         if (data.success) {
             return data.products;
@@ -284,22 +344,21 @@ async function updateDashboard() {
         </div>
     `).join('');
 
-    // Update transactions list (if available)
-    if (currentUser.transactions) {
-        transactionsList.innerHTML = currentUser.transactions.length === 0 
-            ? '<div class="transaction-item">No transactions yet</div>'
-            : currentUser.transactions.map(transaction => `
-                <div class="transaction-item">
-                    <div>
-                        ${transaction.product.name} - $${transaction.product.price}
-                    </div>
-                    <div class="${transaction.successful ? 'success' : 'failed'}">
-                        ${transaction.successful ? 'Successful' : 'Failed'}
-                    </div>
+    // Update transactions list
+    transactionsList.innerHTML = transactions.length === 0
+        ? '<div class="transaction-item">No transactions yet</div>'
+        : transactions.map(transaction => `
+            <div class="transaction-item">
+                <div>
+                    ${transaction.product.name} - $${transaction.product.price}
                 </div>
-            `).join('');
-    } else {
-        transactionsList.innerHTML = '<div class="transaction-item">No transactions yet</div>';
+                <div class="${transaction.successful ? 'success' : 'failed'}">
+                    ${transaction.successful ? 'Successful' : 'Failed'}
+                </div>
+            </div>
+        `).join('');
+    if (nextTransactionCursor !== null) {
+        transactionsList.innerHTML += '<button class="btn" onclick="loadMoreTransactions()">Load more</button>';
     }
 }
 
@@ -310,59 +369,48 @@ async function handlePurchase(product) {
         return;
     }
 
-    // Prompt for password
-    const password = prompt("Please enter your password to confirm the purchase:");
-    if (!password) {
-        alert('Password is required to proceed with the purchase.');
-        return;
-    }
-
     try {
         console.log('Sending purchase request:', {
-            username: currentUser.username,
-            password: password, // Use the password entered by the user
-            productName: product.name,
-            productPrice: product.price.toString()
+            productId: product.id
         });
 
-        const response = await fetch('http://localhost:8080/api/payment', {
+        // One key per purchase, so a retried request is never charged twice
+        const idempotencyKey = crypto.randomUUID();
+        const response = await fetchWithRetry(`${API_BASE}/api/payment`, {
             method: 'POST',
-            headers: {
-                'Content-Type': 'application/json',
-            },
+            headers: { ...authHeaders(), 'Idempotency-Key': idempotencyKey },
             body: JSON.stringify({
-                username: currentUser.username,
-                password: password, // Send the password entered by the user
-                productName: product.name,
-                productPrice: product.price.toString()
+                productId: product.id
             })
         });
 
-        const data = await response.json();
+        let data = await response.json();
         console.log('Purchase response:', data); // Debug log
-        
-        if (data.success) {
+        if (!data.success) {
+            alert(`Purchase failed: ${data.message}`);
+            return;
+        }
+
+        // The payment is authorized in the background; poll until it has an outcome
+        data = await awaitPaymentOutcome(data.payment.id);
+        if (!data.success) {
+            alert(`Purchase failed: ${data.message}`);
+            return;
+        }
+        const payment = data.payment;
+        if (payment.status === 'AUTHORIZED') {
             alert('Purchase successful!');
-            // Update current user data from response
-            if (data.user) {
-                currentUser = {
-                    ...currentUser,
-                    ...data.user,
-                    transactions: currentUser.transactions || []
-                };
-            }
-            // Add the new transaction
-            currentUser.transactions.push({
-                product: product,
-                successful: true
-            });
+        } else if (payment.status === 'PENDING') {
+            alert('Your payment is still being processed. Check your transactions later.');
         } else {
-            alert(`Purchase failed: ${data.message}`);
-            currentUser.transactions = currentUser.transactions || [];
-            currentUser.transactions.push({
-                product: product,
-                successful: false
-            });
+            alert(`Purchase failed: ${payment.reason}`);
+        }
+        // Update current user summary and history from the outcome
+        if (data.user) {
+            currentUser = { ...currentUser, ...data.user };
+        }
+        if (payment.transaction) {
+            transactions.unshift(payment.transaction);
         }
 
         // Refresh the dashboard
@@ -373,5 +421,20 @@ async function handlePurchase(product) {
     }
 }
 
+// Polls a payment's status, backing off from 250 ms to 2 s, for up to about 30 seconds
+async function awaitPaymentOutcome(paymentId) {
+    let delay = 250;
+    let data;
+    for (let waited = 0; waited < 30000; waited += delay, delay = Math.min(delay * 2, 2000)) {
+        await new Promise(resolve => setTimeout(resolve, delay));
+        const response = await fetchWithRetry(`${API_BASE}/api/payment/${paymentId}`, {
+            headers: authHeaders()
+        });
+        data = await response.json();
+        if (!data.success || data.payment.status !== 'PENDING') break;
+    }
+    return data;
+}
+
 // Initialize the application
 showLogin(); 
\ No newline at end of file